@@ -0,0 +1,23 @@
+package hudson.plugins.libvirt;
+
+/**
+ * The outcome of trying to admit a virtual machine to its hypervisor.
+ */
+enum Admission {
+    /**
+     * The virtual machine has been marked online.
+     */
+    ADMITTED,
+    /**
+     * The hypervisor runs as many agents as it may, no virtual machine is admitted until one goes offline.
+     */
+    AT_CAPACITY,
+    /**
+     * The host lacks memory or CPUs for this virtual machine right now, a smaller one may still fit.
+     */
+    NO_RESOURCES,
+    /**
+     * The virtual machine needs more memory or CPUs than the host has even when idle, it never fits.
+     */
+    TOO_LARGE
+}
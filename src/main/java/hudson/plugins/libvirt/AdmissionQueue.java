@@ -0,0 +1,295 @@
+package hudson.plugins.libvirt;
+
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.plugins.libvirt.lib.VirtException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Lets launches which find their hypervisor at capacity wait for a free slot
+ * instead of failing, in order: launches of agents that queued builds can run
+ * on first, then first come, first served.
+ *
+ * Launches try to take a slot in that order, so a slot freed by
+ * {@link Hypervisor#markVMOffline(String, String)} goes to the one that has
+ * been waiting longest rather than to whichever retries first. Only a launch
+ * whose virtual machine needs more than the host has left is passed by
+ * smaller ones, and one that can never be admitted fails right away.
+ *
+ * Waiting does not block a thread: each launch gets a future which completes
+ * once it has been admitted or timed out. Admissions are tried by one thread
+ * at a time on {@link Computer#threadPoolForRemoting}, never while holding the
+ * monitor of the queue.
+ */
+final class AdmissionQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(AdmissionQueue.class.getName());
+
+    /**
+     * How often waiting launches are checked again without being woken up, the
+     * resources of the host may free up without any agent going offline.
+     */
+    private static final long RECHECK_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final Comparator<Waiter> ORDER = Comparator.comparingInt((Waiter w) -> -w.priority)
+                                                              .thenComparingLong(w -> w.sequence);
+
+    private static final class Waiter {
+        private final int priority;
+        private final long sequence;
+        private final String slaveName;
+        private final String vmName;
+        private final long timeoutMillis;
+        private final TaskListener listener;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private boolean logged;
+
+        private Waiter(int priority, long sequence, String slaveName, String vmName, long timeoutMillis,
+                       TaskListener listener) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.slaveName = slaveName;
+            this.vmName = vmName;
+            this.timeoutMillis = timeoutMillis;
+            this.listener = listener;
+        }
+    }
+
+    private final Hypervisor hypervisor;
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(ORDER);
+    private long nextSequence;
+    private boolean processing;
+    /**
+     * Whether a slot may have become free or the head of the queue changed while processing.
+     */
+    private boolean changed;
+    private ScheduledFuture<?> recheck;
+    private boolean closed;
+
+    AdmissionQueue(Hypervisor hypervisor) {
+        this.hypervisor = hypervisor;
+    }
+
+    /**
+     * Marks the virtual machine online as soon as the hypervisor has capacity for it.
+     *
+     * @param node the agent to launch
+     * @param vmName the virtual machine of the agent
+     * @param timeoutMillis how long to wait at most
+     * @param listener the launch log
+     * @return completes with whether the virtual machine was marked online in time,
+     *         or exceptionally if the hypervisor has been removed meanwhile
+     */
+    CompletableFuture<Boolean> admit(Node node, String vmName, long timeoutMillis, TaskListener listener) {
+        int priority = getPriority(node);
+        Waiter waiter;
+        synchronized (this) {
+            waiter = new Waiter(priority, nextSequence++, node.getDisplayName(), vmName, timeoutMillis, listener);
+            if (closed) {
+                waiter.result.completeExceptionally(removed());
+                return waiter.result;
+            }
+            waiters.add(waiter);
+            changed = true;
+        }
+        Timer.get().schedule(() -> expire(waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+        process();
+        return waiter.result;
+    }
+
+    /**
+     * Wakes up the waiting launches, called when a slot may have become free.
+     */
+    void wakeUp() {
+        synchronized (this) {
+            if (waiters.isEmpty()) {
+                return;
+            }
+            changed = true;
+        }
+        // taking a slot may talk to libvirt, the caller may hold the monitor of the hypervisor
+        Computer.threadPoolForRemoting.submit(this::process);
+    }
+
+    /**
+     * Fails all waiting launches, called when the hypervisor has been removed from the configuration.
+     */
+    void close() {
+        List<Waiter> failed;
+        synchronized (this) {
+            closed = true;
+            failed = new ArrayList<>(waiters);
+            waiters.clear();
+            if (recheck != null) {
+                recheck.cancel(false);
+                recheck = null;
+            }
+        }
+        for (Waiter waiter : failed) {
+            waiter.result.completeExceptionally(removed());
+        }
+    }
+
+    /**
+     * @return the number of launches waiting for a slot
+     */
+    synchronized int getWaiting() {
+        return waiters.size();
+    }
+
+    private void expire(Waiter waiter) {
+        boolean head;
+        synchronized (this) {
+            head = waiters.peek() == waiter;
+            if (!waiters.remove(waiter)) {
+                return;
+            }
+            changed = true;
+        }
+        waiter.result.complete(Boolean.FALSE);
+        if (head) {
+            Computer.threadPoolForRemoting.submit(this::process);
+        }
+    }
+
+    /**
+     * Lets the waiting launches take a slot in order until the hypervisor is at
+     * capacity. A launch whose virtual machine does not fit the resources left
+     * on the host lets smaller ones behind it try, one which can never be
+     * admitted fails right away.
+     */
+    private void process() {
+        synchronized (this) {
+            if (processing) {
+                changed = true;
+                return;
+            }
+            processing = true;
+        }
+        boolean stopped = false;
+        try {
+            while (true) {
+                List<Waiter> pending;
+                synchronized (this) {
+                    pending = new ArrayList<>(waiters);
+                    changed = false;
+                    if (pending.isEmpty()) {
+                        processing = false;
+                        stopped = true;
+                        return;
+                    }
+                }
+                pending.sort(ORDER);
+
+                for (Waiter waiter : pending) {
+                    Admission admission;
+                    try {
+                        admission = hypervisor.tryAdmitVM(waiter.slaveName, waiter.vmName);
+                    } catch (IOException | RuntimeException e) {
+                        synchronized (this) {
+                            waiters.remove(waiter);
+                        }
+                        waiter.result.completeExceptionally(e);
+                        continue;
+                    }
+                    if (admission == Admission.ADMITTED) {
+                        synchronized (this) {
+                            waiters.remove(waiter);
+                        }
+                        if (!waiter.result.complete(Boolean.TRUE)) {
+                            // timed out or failed meanwhile, hand the slot back
+                            release(waiter);
+                        }
+                    } else if (admission == Admission.AT_CAPACITY) {
+                        // nobody behind gets a slot either
+                        break;
+                    }
+                }
+
+                List<Waiter> unlogged = new ArrayList<>();
+                int waiting;
+                synchronized (this) {
+                    for (Waiter waiter : waiters) {
+                        if (!waiter.logged) {
+                            waiter.logged = true;
+                            unlogged.add(waiter);
+                        }
+                    }
+                    waiting = waiters.size();
+                }
+                for (Waiter waiter : unlogged) {
+                    waiter.listener.getLogger().println("Hypervisor \"" + hypervisor.getHypervisorDescription()
+                                                        + "\" is at capacity, waiting up to "
+                                                        + TimeUnit.MILLISECONDS.toSeconds(waiter.timeoutMillis)
+                                                        + "s for a free slot (" + (waiting - 1) + " launches waiting)");
+                }
+
+                synchronized (this) {
+                    if (!changed) {
+                        // checked in the same block, so a concurrent wake up is not lost
+                        processing = false;
+                        stopped = true;
+                        scheduleRecheck();
+                        return;
+                    }
+                }
+            }
+        } finally {
+            if (!stopped) {
+                synchronized (this) {
+                    processing = false;
+                }
+            }
+        }
+    }
+
+    private void release(Waiter waiter) {
+        try {
+            hypervisor.markVMOffline(waiter.slaveName, waiter.vmName);
+        } catch (VirtException e) {
+            LOGGER.log(Level.WARNING, "Failed to release the slot of " + waiter.slaveName, e);
+        }
+    }
+
+    private synchronized void scheduleRecheck() {
+        if (closed || waiters.isEmpty() || (recheck != null && !recheck.isDone())) {
+            return;
+        }
+        recheck = Timer.get().schedule(() -> Computer.threadPoolForRemoting.submit(this::process),
+                                       RECHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private IOException removed() {
+        return new IOException("Hypervisor \"" + hypervisor.getHypervisorDescription()
+                               + "\" has been removed from the configuration");
+    }
+
+    /**
+     * @return 1 if a queued build could run on the agent, 0 otherwise
+     */
+    private static int getPriority(Node node) {
+        for (Queue.BuildableItem item : Jenkins.get().getQueue().getBuildableItems()) {
+            Label label = item.getAssignedLabel();
+            if (label == null ? node.getMode() == Node.Mode.NORMAL : label.contains(node)) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,137 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Reverts idle agents to the Before Job snapshot of a queued task before the
+ * task is assigned to them, instead of on the executor once the build has
+ * started. The task waits in the queue meanwhile and is accepted by the
+ * prepared agent without any work on its virtual machine.
+ *
+ * Only one agent is prepared per queue item, picked by {@link Preparer} when
+ * the item becomes buildable. {@link #canTake} runs with the queue locked and
+ * only reads what has been tracked. If no idle agent could be prepared, the
+ * task is assigned as before and the revert happens in
+ * {@link VirtualMachineSlaveComputer#taskAccepted}.
+ */
+@Extension
+public class BeforeJobSnapshotDispatcher extends QueueTaskDispatcher {
+
+    /**
+     * The agent being prepared for a queue item, by queue item id.
+     */
+    private final Map<Long, String> preparing = new ConcurrentHashMap<>();
+
+    @Override
+    public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        if (!(node instanceof VirtualMachineSlave)) {
+            return null;
+        }
+        Computer c = node.toComputer();
+        if (!(c instanceof VirtualMachineSlaveComputer) || c.isOffline() || !c.isIdle()) {
+            // reverting would kill the builds running on the agent, taskAccepted() deals with it as before
+            return null;
+        }
+        VirtualMachineSlaveComputer computer = (VirtualMachineSlaveComputer) c;
+        String snapshotName = VirtualMachineSlaveComputer.getBeforeJobSnapshotName((VirtualMachineSlave) node,
+                                                                                    item.task);
+        if (snapshotName == null || computer.isTrackedPreparedFor(snapshotName)) {
+            return null;
+        }
+
+        String preparingNode = preparing.get(item.getId());
+        if (preparingNode == null) {
+            return null;
+        }
+        return new Preparing(preparingNode, snapshotName);
+    }
+
+    /**
+     * Starts reverting an idle agent to the Before Job snapshot of the item,
+     * unless an idle agent is in that snapshot already.
+     *
+     * @param item an item which has just become buildable
+     */
+    private void prepare(Queue.BuildableItem item) {
+        if (preparing.containsKey(item.getId())) {
+            return;
+        }
+        Label label = item.getAssignedLabel();
+        VirtualMachineSlaveComputer candidate = null;
+        String candidateSnapshotName = null;
+        for (Node node : Jenkins.get().getNodes()) {
+            if (!(node instanceof VirtualMachineSlave)
+                || !(label == null ? node.getMode() == Node.Mode.NORMAL : label.contains(node))) {
+                continue;
+            }
+            Computer c = node.toComputer();
+            if (!(c instanceof VirtualMachineSlaveComputer) || c.isOffline() || !c.isIdle()
+                || !c.isAcceptingTasks() || preparing.containsValue(node.getNodeName())) {
+                continue;
+            }
+            VirtualMachineSlaveComputer computer = (VirtualMachineSlaveComputer) c;
+            String snapshotName = VirtualMachineSlaveComputer.getBeforeJobSnapshotName((VirtualMachineSlave) node,
+                                                                                        item.task);
+            if (snapshotName == null || computer.isTrackedPreparedFor(snapshotName)) {
+                // the task can run on this agent right away
+                return;
+            }
+            if (candidate == null) {
+                candidate = computer;
+                candidateSnapshotName = snapshotName;
+            }
+        }
+        if (candidate == null) {
+            return;
+        }
+
+        final long id = item.getId();
+        final String nodeName = candidate.getName();
+        if (preparing.putIfAbsent(id, nodeName) == null) {
+            candidate.prepareBeforeJobSnapshot(candidateSnapshotName)
+                     .whenComplete((result, e) -> preparing.remove(id, nodeName));
+        }
+    }
+
+    /**
+     * Prepares an agent for each item entering the buildable state.
+     */
+    @Extension
+    public static class Preparer extends QueueListener {
+        @Override
+        public void onEnterBuildable(Queue.BuildableItem item) {
+            ExtensionList.lookupSingleton(BeforeJobSnapshotDispatcher.class).prepare(item);
+        }
+    }
+
+    /**
+     * The task waits for an agent to be reverted to its Before Job snapshot.
+     */
+    private static final class Preparing extends CauseOfBlockage {
+        private final String nodeName;
+        private final String snapshotName;
+
+        private Preparing(String nodeName, String snapshotName) {
+            this.nodeName = nodeName;
+            this.snapshotName = snapshotName;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Waiting for " + nodeName + " to be reverted to snapshot '" + snapshotName + "'";
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package hudson.plugins.libvirt;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Node;
+import hudson.slaves.NodeListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * The observed boot-to-ready durations of the last launches of one node.
+ *
+ * The launcher derives its first connection attempt and the spacing of
+ * its retries from this distribution instead of the fixed startup period.
+ * The history is kept in a small file per node below the Jenkins home.
+ */
+public final class BootTimeHistory {
+
+    private static final Logger LOGGER = Logger.getLogger(BootTimeHistory.class.getName());
+
+    private static final int MAX_SAMPLES = 32;
+
+    /**
+     * Below this number of samples the history is not used for decisions.
+     */
+    private static final int MIN_SAMPLES = 3;
+
+    private static final Map<String, BootTimeHistory> HISTORIES = new ConcurrentHashMap<>();
+
+    private transient String nodeName;
+
+    /**
+     * Ring buffer of boot durations in milliseconds.
+     */
+    private int[] samples = new int[MAX_SAMPLES];
+    private int count;
+    private int next;
+
+    private BootTimeHistory(String nodeName) {
+        this.nodeName = nodeName;
+    }
+
+    /**
+     * Returns the history of a node, loading it from disk on first access.
+     *
+     * @param nodeName the name of the node
+     * @return the history
+     */
+    public static BootTimeHistory forNode(String nodeName) {
+        return HISTORIES.computeIfAbsent(nodeName, BootTimeHistory::load);
+    }
+
+    private static BootTimeHistory load(String nodeName) {
+        XmlFile file = getConfigFile(nodeName);
+        if (file.exists()) {
+            try {
+                BootTimeHistory history = (BootTimeHistory) file.read();
+                history.nodeName = nodeName;
+                if (history.samples == null || history.samples.length != MAX_SAMPLES) {
+                    return new BootTimeHistory(nodeName);
+                }
+                return history;
+            } catch (IOException | ClassCastException e) {
+                LOGGER.log(Level.WARNING, "Failed to load boot times of " + nodeName, e);
+            }
+        }
+        return new BootTimeHistory(nodeName);
+    }
+
+    /**
+     * Forgets the history of a node and deletes its file.
+     *
+     * @param nodeName the name of the node
+     */
+    static void remove(String nodeName) {
+        HISTORIES.remove(nodeName);
+        XmlFile file = getConfigFile(nodeName);
+        try {
+            Files.deleteIfExists(file.getFile().toPath());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete boot times of " + nodeName, e);
+        }
+    }
+
+    private static XmlFile getConfigFile(String nodeName) {
+        File dir = new File(new File(Jenkins.get().getRootDir(), "libvirt-slave"), "boot-times");
+        return new XmlFile(Jenkins.XSTREAM2, new File(dir, Util.rawEncode(nodeName) + ".xml"));
+    }
+
+    /**
+     * Records the duration from starting the virtual machine until it was
+     * reported ready or the connection attempt started that succeeded.
+     *
+     * @param millis the duration in milliseconds
+     */
+    public void record(long millis) {
+        synchronized (this) {
+            samples[next] = (int) Math.min(Integer.MAX_VALUE, Math.max(0, millis));
+            next = (next + 1) % MAX_SAMPLES;
+            count = Math.min(count + 1, MAX_SAMPLES);
+        }
+        save();
+    }
+
+    private synchronized void save() {
+        try {
+            getConfigFile(nodeName).write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save boot times of " + nodeName, e);
+        }
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * @return whether there are enough samples to base decisions on
+     */
+    public synchronized boolean isTrained() {
+        return count >= MIN_SAMPLES;
+    }
+
+    /**
+     * Returns a percentile of the recorded boot durations.
+     *
+     * @param percentile the percentile between 0 and 1
+     * @return the duration in milliseconds, or -1 if nothing was recorded yet
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        int[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * Slightly before the fast boots, so that a boot which got faster is
+     * recorded as such instead of as the time of the first attempt.
+     *
+     * @return when to make the first connection attempt after starting the virtual machine
+     */
+    public long getFirstAttemptMillis() {
+        return percentile(0.1) * 3 / 4;
+    }
+
+    /**
+     * The spread between a typical and a slow boot, spread over a few attempts.
+     *
+     * @param minMillis the configured interval between attempts
+     * @return how long to wait between connection attempts, at least the configured interval
+     */
+    public long getRetryIntervalMillis(long minMillis) {
+        return Math.max(minMillis, (percentile(0.9) - percentile(0.5)) / 2);
+    }
+
+    public long getMedianSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(percentile(0.5));
+    }
+
+    public long getP90Seconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(percentile(0.9));
+    }
+
+    public long getMaxSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(percentile(1));
+    }
+
+    /**
+     * Removes the history of deleted or renamed nodes, linked clones get a new name every time.
+     */
+    @Extension
+    public static final class Cleanup extends NodeListener {
+        @Override
+        protected void onDeleted(@NonNull Node node) {
+            if (node instanceof VirtualMachineSlave) {
+                remove(node.getNodeName());
+            }
+        }
+
+        @Override
+        protected void onUpdated(@NonNull Node oldOne, @NonNull Node newOne) {
+            if (oldOne instanceof VirtualMachineSlave && !oldOne.getNodeName().equals(newOne.getNodeName())) {
+                remove(oldOne.getNodeName());
+            }
+        }
+    }
+}
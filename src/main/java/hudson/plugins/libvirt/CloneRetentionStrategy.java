@@ -0,0 +1,70 @@
+package hudson.plugins.libvirt;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.slaves.RetentionStrategy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Keeps a linked clone while it is busy and terminates it once it has been idle for a while.
+ */
+public class CloneRetentionStrategy extends RetentionStrategy<VirtualMachineSlaveComputer> {
+
+    private static final Logger LOGGER = Logger.getLogger(CloneRetentionStrategy.class.getName());
+
+    private final int idleMinutes;
+
+    @DataBoundConstructor
+    public CloneRetentionStrategy(int idleMinutes) {
+        this.idleMinutes = idleMinutes;
+    }
+
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    @Override
+    public long check(@NonNull VirtualMachineSlaveComputer c) {
+        Node node = c.getNode();
+        if (!(node instanceof CloneSlave) || !c.isIdle() || c.isConnecting() || !c.isAcceptingTasks()) {
+            return 1;
+        }
+        long idleMillis = System.currentTimeMillis() - c.getIdleStartMilliseconds();
+        if (idleMillis > TimeUnit.MINUTES.toMillis(idleMinutes)) {
+            LOGGER.log(Level.INFO, "Terminating linked clone {0}, idle for {1} minutes",
+                       new Object[]{c.getName(), TimeUnit.MILLISECONDS.toMinutes(idleMillis)});
+            c.setAcceptingTasks(false);
+            final CloneSlave clone = (CloneSlave) node;
+            Computer.threadPoolForRemoting.submit(() -> {
+                try {
+                    clone.terminate();
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to terminate linked clone " + clone.getNodeName(), e);
+                }
+            });
+        }
+        return 1;
+    }
+
+    @Override
+    public void start(@NonNull VirtualMachineSlaveComputer c) {
+        c.connect(false);
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "Terminate linked clones when idle";
+        }
+    }
+}
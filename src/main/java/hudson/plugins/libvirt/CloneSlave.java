@@ -0,0 +1,103 @@
+package hudson.plugins.libvirt;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.OfflineCause;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * An agent running on a linked clone of a {@link CloneTemplate}, the clone is
+ * removed together with the agent.
+ */
+public class CloneSlave extends VirtualMachineSlave {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = Logger.getLogger(CloneSlave.class.getName());
+
+    private final String templateName;
+    private final List<String> overlayPaths;
+
+    public CloneSlave(CloneTemplate template, Hypervisor hypervisor, String cloneName, List<String> overlayPaths)
+            throws Descriptor.FormException, IOException {
+        super(cloneName, "Linked clone of " + template.getTemplateName(), template.getRemoteFS(),
+              String.valueOf(template.getNumExecutors()), Mode.EXCLUSIVE, template.getLabelString(),
+              null, copy(template.getLauncher()), new CloneRetentionStrategy(template.getIdleMinutes()),
+              Collections.emptyList(), hypervisor.getHypervisorDescription(), cloneName, "",
+              template.getStartupWaitingPeriodSeconds(), "destroy", false, 0, "");
+        this.templateName = template.getTemplateName();
+        this.overlayPaths = new ArrayList<>(overlayPaths);
+    }
+
+    /**
+     * Every clone needs a launcher of its own, the template only holds the configuration.
+     */
+    private static ComputerLauncher copy(ComputerLauncher launcher) {
+        return (ComputerLauncher) Jenkins.XSTREAM2.fromXML(Jenkins.XSTREAM2.toXML(launcher));
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public List<String> getOverlayPaths() {
+        return Collections.unmodifiableList(overlayPaths);
+    }
+
+    /**
+     * Disconnects and removes the agent, then destroys the clone and deletes its overlays.
+     *
+     * @throws IOException if the agent could not be removed
+     * @throws InterruptedException if interrupted while waiting for the disconnect
+     */
+    public void terminate() throws IOException, InterruptedException {
+        Computer computer = toComputer();
+        if (computer != null) {
+            Future<?> disconnect = computer.disconnect(new OfflineCause.ByCLI("Terminating linked clone"));
+            try {
+                disconnect.get();
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.WARNING, "Failed to disconnect " + getNodeName(), e);
+            }
+        }
+        Jenkins.get().removeNode(this);
+
+        Hypervisor hypervisor = HypervisorRegistry.getByDescription(getHypervisorDescription());
+        if (hypervisor == null) {
+            LOGGER.log(Level.WARNING, "Cannot delete linked clone {0}, its hypervisor is gone", getNodeName());
+            return;
+        }
+        try {
+            LinkedClone.delete(hypervisor, getVirtualMachineName(), overlayPaths);
+        } catch (VirtException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete linked clone " + getNodeName(), e);
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends VirtualMachineSlave.DescriptorImpl {
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "Linked clone of a libvirt template";
+        }
+
+        @Override
+        public boolean isInstantiable() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package hudson.plugins.libvirt;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.JNLPLauncher;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import jenkins.model.Jenkins;
+
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Maps a label to a template domain, agents for the label are provisioned
+ * as linked clones of the template.
+ *
+ * The address of a clone is not known before it has booted, so its agent
+ * has to connect inbound instead of being connected to.
+ */
+public class CloneTemplate extends AbstractDescribableImpl<CloneTemplate> {
+
+    private final String templateName;
+    private final String labelString;
+    private final ComputerLauncher launcher;
+    private String remoteFS = "/home/jenkins";
+    private int numExecutors = 1;
+    private int instanceCap;
+    private int idleMinutes = 10;
+    private int startupWaitingPeriodSeconds = 60;
+
+    private transient Set<LabelAtom> labelSet;
+    private transient int provisioning;
+
+    @DataBoundConstructor
+    public CloneTemplate(String templateName, String labelString, ComputerLauncher launcher) {
+        this.templateName = templateName;
+        this.labelString = Util.fixNull(labelString);
+        this.launcher = launcher;
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public String getLabelString() {
+        return labelString;
+    }
+
+    public ComputerLauncher getLauncher() {
+        return launcher;
+    }
+
+    public String getRemoteFS() {
+        return remoteFS;
+    }
+
+    @DataBoundSetter
+    public void setRemoteFS(String remoteFS) {
+        this.remoteFS = remoteFS;
+    }
+
+    public int getNumExecutors() {
+        return Math.max(1, numExecutors);
+    }
+
+    @DataBoundSetter
+    public void setNumExecutors(int numExecutors) {
+        this.numExecutors = numExecutors;
+    }
+
+    /**
+     * @return the maximum number of clones of this template, 0 for no limit
+     */
+    public int getInstanceCap() {
+        return instanceCap;
+    }
+
+    @DataBoundSetter
+    public void setInstanceCap(int instanceCap) {
+        this.instanceCap = Math.max(0, instanceCap);
+    }
+
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    @DataBoundSetter
+    public void setIdleMinutes(int idleMinutes) {
+        this.idleMinutes = Math.max(0, idleMinutes);
+    }
+
+    public int getStartupWaitingPeriodSeconds() {
+        return startupWaitingPeriodSeconds;
+    }
+
+    @DataBoundSetter
+    public void setStartupWaitingPeriodSeconds(int startupWaitingPeriodSeconds) {
+        this.startupWaitingPeriodSeconds = startupWaitingPeriodSeconds;
+    }
+
+    public boolean matches(Label label) {
+        if (labelSet == null) {
+            labelSet = Label.parse(labelString);
+        }
+        return label != null && label.matches(labelSet);
+    }
+
+    /**
+     * Reserves capacity for one more clone, to be used by {@link #provision(Hypervisor)}.
+     *
+     * @param hypervisor the hypervisor of this template
+     * @return whether another clone of this template may be provisioned
+     */
+    synchronized boolean reserve(Hypervisor hypervisor) {
+        if (instanceCap > 0 && countClones(hypervisor, templateName) + provisioning >= instanceCap) {
+            return false;
+        }
+        provisioning++;
+        return true;
+    }
+
+    /**
+     * @return whether agents can be provisioned from this template, i.e. its launcher does not need their address
+     */
+    boolean isLaunchable() {
+        return isSupported(launcher);
+    }
+
+    private static boolean isSupported(ComputerLauncher launcher) {
+        return launcher instanceof JNLPLauncher;
+    }
+
+    /**
+     * @param hypervisor the hypervisor of the template
+     * @param templateName the name of the template domain
+     * @return the number of agents on linked clones of the template
+     */
+    static int countClones(Hypervisor hypervisor, String templateName) {
+        int count = 0;
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof CloneSlave
+                && templateName.equals(((CloneSlave) node).getTemplateName())
+                && hypervisor.getHypervisorDescription().equals(((CloneSlave) node).getHypervisorDescription())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    synchronized int getProvisioningCount() {
+        return provisioning;
+    }
+
+    /**
+     * Defines a linked clone of the template and creates its agent. The agent is
+     * launched, and with it the clone started, once it has been added to Jenkins.
+     * Releases the capacity reserved through {@link #reserve(Hypervisor)}.
+     *
+     * @param hypervisor the hypervisor of this template
+     * @return the agent of the new clone
+     * @throws Exception if the clone could not be defined
+     */
+    Node provision(Hypervisor hypervisor) throws Exception {
+        try {
+            String cloneName = templateName + "-" + UUID.randomUUID().toString().substring(0, 8);
+            List<String> overlays = LinkedClone.create(hypervisor, templateName, cloneName);
+            try {
+                return new CloneSlave(this, hypervisor, cloneName, overlays);
+            } catch (Descriptor.FormException | IOException | RuntimeException e) {
+                LinkedClone.delete(hypervisor, cloneName, overlays);
+                throw e;
+            }
+        } finally {
+            synchronized (this) {
+                provisioning--;
+            }
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<CloneTemplate> {
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "Linked clone template";
+        }
+
+        /**
+         * @return the launchers clones can be connected with
+         */
+        public List<Descriptor<ComputerLauncher>> getLauncherDescriptors() {
+            return Collections.singletonList(Jenkins.get().getDescriptorByType(JNLPLauncher.DescriptorImpl.class));
+        }
+
+        @Override
+        public CloneTemplate newInstance(StaplerRequest req, @NonNull JSONObject formData) throws FormException {
+            CloneTemplate template = super.newInstance(req, formData);
+            if (!template.isLaunchable()) {
+                throw new FormException("Linked clones can only be launched as inbound agents,"
+                                        + " their address is not known in advance", "launcher");
+            }
+            return template;
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package hudson.plugins.libvirt;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -9,8 +10,11 @@ import javax.annotation.CheckForNull;
 
 import hudson.model.Computer;
 import hudson.model.TaskListener;
+import hudson.plugins.libvirt.lib.DomainState;
+import hudson.plugins.libvirt.lib.IConnect;
 import hudson.plugins.libvirt.lib.IDomain;
-import hudson.plugins.libvirt.lib.IDomainSnapshot;
+import hudson.plugins.libvirt.lib.IStoragePool;
+import hudson.plugins.libvirt.lib.IStorageVol;
 import hudson.plugins.libvirt.lib.VirtException;
 import hudson.remoting.VirtualChannel;
 import hudson.slaves.OfflineCause;
@@ -21,9 +25,16 @@ public final class ComputerUtils {
 
     private static final Logger LOGGER = Logger.getLogger(ComputerUtils.class.getName());
 
-    private static final int RETRY_MAX = 5;
+    /**
+     * An operation on a domain.
+     */
+    private interface DomainOperation {
+        void apply(IDomain domain) throws VirtException;
+    }
+
+    private static final long SHUTOFF_POLL_MIN_MS = 250;
 
-    private static final int RETRY_WAIT_MS = 500;
+    private static final long SHUTOFF_POLL_MAX_MS = 5000;
 
     private ComputerUtils() {
     }
@@ -58,38 +69,96 @@ public final class ComputerUtils {
         }
     }
 
-    public static void start(final VirtualMachine virtualMachine) {
-        start(virtualMachine, null);
+    public static boolean start(final VirtualMachine virtualMachine) {
+        return start(virtualMachine, null);
     }
 
-    public static void start(final VirtualMachine virtualMachine, @CheckForNull final TaskListener listener) {
+    /**
+     * Starts the virtual machine unless it is already running. A virtual machine
+     * with a managed save image is restored from it instead of being booted.
+     *
+     * @param virtualMachine the virtual machine
+     * @param listener the log to report to
+     * @return whether the virtual machine was started by this call
+     */
+    public static boolean start(final VirtualMachine virtualMachine, @CheckForNull final TaskListener listener) {
+        final int clones = CloneTemplate.countClones(virtualMachine.getHypervisor(), virtualMachine.getName());
+        if (clones > 0) {
+            // the disks of the clones are overlays on top of the disks of the template
+            error(listener, "VM \"" + virtualMachine.getName() + "\" is the template of " + clones
+                    + " linked clone(s) and must stay shut off.");
+            return false;
+        }
         final IDomain domain = getDomain(virtualMachine, listener);
         if (domain != null) {
             try {
                 if (domain.isRunningOrBlocked()) {
                     log(listener, "VM " + virtualMachine.getName()
                             + " is already running, no startup required.");
-                    return;
+                    return false;
                 }
             } catch (final VirtException e) {
                 error(listener, "Error checking if VM " + virtualMachine.getName()
                         + " is already running, will consider it as stopped.");
             }
 
-            for (int i = 0; i < RETRY_MAX; i++) {
-                try {
-                    log(listener, "Starting VM \"" + virtualMachine.getName() + "\"");
-                    domain.create();
-                    break;
-                } catch (final VirtException e) {
-                    try {
-                        Thread.sleep(RETRY_WAIT_MS);
-                    } catch (final InterruptedException e2) {
-                        // ignore
+            try {
+                retry(virtualMachine, "start VM " + virtualMachine.getName(), d -> {
+                    if (hasManagedSaveImage(d)) {
+                        log(listener, "Restoring VM \"" + virtualMachine.getName() + "\" from its managed save image");
+                    } else {
+                        log(listener, "Starting VM \"" + virtualMachine.getName() + "\"");
                     }
+                    d.create();
+                });
+                return true;
+            } catch (final VirtException e) {
+                error(listener, "Error starting VM \"" + virtualMachine.getName() + "\": " + e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resumes the virtual machine if it is suspended.
+     *
+     * @param virtualMachine the virtual machine
+     * @param listener the log to report to
+     * @return whether the virtual machine was resumed by this call
+     */
+    public static boolean resume(final VirtualMachine virtualMachine, @CheckForNull final TaskListener listener) {
+        final IDomain domain = getDomain(virtualMachine, listener);
+        if (domain != null) {
+            try {
+                if (domain.getState() == DomainState.PAUSED) {
+                    log(listener, "Resuming VM \"" + virtualMachine.getName() + "\"");
+                    domain.resume();
+                    return true;
                 }
+            } catch (final VirtException e) {
+                virtualMachine.getHypervisor().forgetDomain(virtualMachine.getName());
+                error(listener, "Error resuming VM \"" + virtualMachine.getName() + "\", will start it instead: " + e);
             }
         }
+        return false;
+    }
+
+    /**
+     * @param virtualMachine the virtual machine
+     * @return whether the next start restores the virtual machine from a managed save image
+     */
+    public static boolean hasManagedSaveImage(final VirtualMachine virtualMachine) {
+        final IDomain domain = getDomain(virtualMachine, null);
+        return domain != null && hasManagedSaveImage(domain);
+    }
+
+    private static boolean hasManagedSaveImage(final IDomain domain) {
+        try {
+            return domain.hasManagedSaveImage();
+        } catch (final VirtException e) {
+            LOGGER.log(Level.FINE, "Cannot determine whether the VM has a managed save image", e);
+            return false;
+        }
     }
 
     public static void stop(final VirtualMachine virtualMachine, final String shutdownMethod) {
@@ -98,6 +167,21 @@ public final class ComputerUtils {
 
     public static void stop(final VirtualMachine virtualMachine, final String shutdownMethod,
             @CheckForNull final TaskListener listener) {
+        stop(virtualMachine, shutdownMethod, 0, listener);
+    }
+
+    /**
+     * Stops the virtual machine. A graceful shutdown is waited for up to the
+     * given timeout, after which the virtual machine is destroyed, so that it is
+     * certainly off when this returns.
+     *
+     * @param virtualMachine the virtual machine
+     * @param shutdownMethod one of "shutdown", "suspend", "destroy" or "managedsave"
+     * @param shutdownTimeoutSeconds how long to wait for a graceful shutdown, 0 to not wait at all
+     * @param listener the log to report to
+     */
+    public static void stop(final VirtualMachine virtualMachine, final String shutdownMethod,
+            final int shutdownTimeoutSeconds, @CheckForNull final TaskListener listener) {
         final IDomain domain = getDomain(virtualMachine, listener);
         if (domain != null) {
             try {
@@ -112,45 +196,105 @@ public final class ComputerUtils {
                               virtualMachine.getName()));
             }
 
-            for (int i = 0; i < RETRY_MAX; i++) {
-                try {
+            try {
+                retry(virtualMachine, "stop VM " + virtualMachine.getName(), d -> {
                     log(listener,
                         MessageFormat.format("Stopping VM \"{0}\" (using method {1})",
                                 virtualMachine.getName(), shutdownMethod));
                     if ("suspend".equals(shutdownMethod)) {
-                        domain.suspend();
+                        d.suspend();
+                    } else if ("managedsave".equals(shutdownMethod)) {
+                        d.managedSave();
                     } else if ("destroy".equals(shutdownMethod)) {
-                        domain.destroy();
+                        d.destroy();
                     } else {
-                        domain.shutdown();
-                    }
-                    break;
-                } catch (final VirtException e) {
-                    try {
-                        Thread.sleep(RETRY_WAIT_MS);
-                    } catch (final InterruptedException e2) {
-                        // ignore
+                        d.shutdown();
                     }
+                });
+                if (shutdownTimeoutSeconds > 0 && !isImmediate(shutdownMethod)) {
+                    awaitShutoff(virtualMachine, domain, shutdownTimeoutSeconds, listener);
                 }
+            } catch (final VirtException e) {
+                error(listener, MessageFormat.format("Error stopping VM \"{0}\": {1}", virtualMachine.getName(), e));
             }
         }
     }
 
-    public static void revertToSnapshot(final VirtualMachine virtualMachine, final String snapshotName) {
-        revertToSnapshot(virtualMachine, snapshotName, null);
+    /**
+     * @return whether the shutdown method has taken effect when libvirt returns
+     */
+    private static boolean isImmediate(final String shutdownMethod) {
+        return "suspend".equals(shutdownMethod) || "managedsave".equals(shutdownMethod)
+                || "destroy".equals(shutdownMethod);
     }
 
-    public static void revertToSnapshot(final VirtualMachine virtualMachine, final String snapshotName,
+    /**
+     * Polls the state of the virtual machine with increasing intervals until
+     * it is off, and destroys it when it is not off by the deadline.
+     */
+    private static void awaitShutoff(final VirtualMachine virtualMachine, final IDomain domain,
+            final int timeoutSeconds, @CheckForNull final TaskListener listener) throws VirtException {
+        final long start = System.currentTimeMillis();
+        final long deadline = start + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        long interval = SHUTOFF_POLL_MIN_MS;
+        while (true) {
+            try {
+                DomainState state = domain.getState();
+                if (state == DomainState.SHUTOFF || state == DomainState.CRASHED) {
+                    log(listener, MessageFormat.format("VM \"{0}\" shut down after {1}ms",
+                            virtualMachine.getName(), System.currentTimeMillis() - start));
+                    return;
+                }
+            } catch (final VirtException e) {
+                LOGGER.log(Level.FINE, "Cannot determine state of VM " + virtualMachine.getName(), e);
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                Thread.sleep(Math.min(interval, remaining));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            interval = Math.min(interval * 2, SHUTOFF_POLL_MAX_MS);
+        }
+
+        log(listener, MessageFormat.format("VM \"{0}\" did not shut down within {1}s, destroying it",
+                virtualMachine.getName(), timeoutSeconds));
+        final long destroyStart = System.currentTimeMillis();
+        retry(virtualMachine, "destroy VM " + virtualMachine.getName(), IDomain::destroy);
+        log(listener, MessageFormat.format("VM \"{0}\" destroyed after {1}ms",
+                virtualMachine.getName(), System.currentTimeMillis() - destroyStart));
+    }
+
+    public static boolean revertToSnapshot(final VirtualMachine virtualMachine, final String snapshotName) {
+        return revertToSnapshot(virtualMachine, snapshotName, null);
+    }
+
+    /**
+     * @param virtualMachine the virtual machine
+     * @param snapshotName the snapshot to revert to
+     * @param listener the log to report to
+     * @return whether the virtual machine was reverted
+     */
+    public static boolean revertToSnapshot(final VirtualMachine virtualMachine, final String snapshotName,
             @CheckForNull final TaskListener listener) {
         if (snapshotName != null && snapshotName.length() > 0) {
             final IDomain domain = getDomain(virtualMachine, listener);
             if (domain != null) {
                 try {
-                    final IDomainSnapshot snapshot = domain.snapshotLookupByName(snapshotName);
+                    domain.snapshotLookupByName(snapshotName);
                     try {
                         log(listener, MessageFormat.format("Reverting VM \"{0}\" to snapshot \"{1}\"",
                                 virtualMachine.getName(), snapshotName));
-                        domain.revertToSnapshot(snapshot);
+                        retry(virtualMachine, "revert VM " + virtualMachine.getName(),
+                                d -> d.revertToSnapshot(d.snapshotLookupByName(snapshotName)));
+                        virtualMachine.getHypervisor().getSnapshotTracker().applied(virtualMachine.getName(),
+                                                                                     snapshotName);
+                        return true;
                     } catch (final VirtException e) {
                         error(listener, MessageFormat.format("Error reverting to snapshot \"{0}\" for VM \"{1}\": {2}",
                                 snapshotName, virtualMachine.getName(), e));
@@ -161,21 +305,132 @@ public final class ComputerUtils {
                 }
             }
         }
+        return false;
+    }
+
+    /**
+     * @param virtualMachine the virtual machine
+     * @return the name of the snapshot libvirt considers current, i.e. last reverted to or created,
+     *         or null if there is none or it cannot be determined
+     */
+    @CheckForNull
+    public static String getCurrentSnapshotName(final VirtualMachine virtualMachine) {
+        final IDomain domain = getDomain(virtualMachine, null);
+        if (domain != null) {
+            try {
+                return domain.snapshotCurrent().getName();
+            } catch (final VirtException e) {
+                if (!"VIR_ERR_NO_DOMAIN_SNAPSHOT".equals(e.getErrorCode())) {
+                    LOGGER.log(Level.FINE, "Cannot determine current snapshot of VM " + virtualMachine.getName(), e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Discards the copy-on-write overlay the virtual machine runs on and
+     * creates an empty one on top of the base image, so that the next run
+     * starts from the base image again. The virtual machine must be off.
+     *
+     * @param virtualMachine the virtual machine
+     * @param overlayPath the path of the overlay volume the virtual machine uses as its disk
+     * @param baseImagePath the path of the read-only base image
+     * @param listener the log to report to
+     */
+    public static void resetOverlay(final VirtualMachine virtualMachine, final String overlayPath,
+            final String baseImagePath, @CheckForNull final TaskListener listener) {
+        final Hypervisor hypervisor = virtualMachine.getHypervisor();
+        log(listener, MessageFormat.format("Recreating overlay \"{0}\" of VM \"{1}\" on base image \"{2}\"",
+                overlayPath, virtualMachine.getName(), baseImagePath));
+        try {
+            hypervisor.getRetryPolicy().execute("recreate overlay " + overlayPath,
+                    () -> hypervisor.getConnectionPool().execute(con -> {
+                        final IStorageVol base = con.storageVolLookupByPath(baseImagePath);
+                        final IStorageVol overlay = lookupVolume(con, overlayPath);
+                        final IStoragePool pool;
+                        final String name;
+                        if (overlay != null) {
+                            pool = overlay.getPool();
+                            name = overlay.getName();
+                            overlay.delete();
+                        } else {
+                            // first run, or the overlay got deleted before it could be recreated
+                            pool = base.getPool();
+                            name = new File(overlayPath).getName();
+                        }
+                        return pool.createOverlay(name, base);
+                    }));
+        } catch (final VirtException e) {
+            error(listener, MessageFormat.format("Error recreating overlay \"{0}\" of VM \"{1}\": {2}",
+                    overlayPath, virtualMachine.getName(), e));
+        }
+    }
+
+    private static @CheckForNull IStorageVol lookupVolume(final IConnect con, final String path) throws VirtException {
+        try {
+            return con.storageVolLookupByPath(path);
+        } catch (final VirtException e) {
+            if ("VIR_ERR_NO_STORAGE_VOL".equals(e.getErrorCode())) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reverting to a snapshot of a running guest leaves the VM running, it
+     * needs neither to be stopped before nor to be booted after the revert.
+     *
+     * @param virtualMachine the virtual machine
+     * @param snapshotName the snapshot
+     * @param listener the log to report to
+     * @return whether the snapshot holds a running guest
+     */
+    public static boolean isLiveSnapshot(final VirtualMachine virtualMachine, final String snapshotName,
+            @CheckForNull final TaskListener listener) {
+        if (snapshotName != null && snapshotName.length() > 0) {
+            final IDomain domain = getDomain(virtualMachine, listener);
+            if (domain != null) {
+                try {
+                    return domain.snapshotLookupByName(snapshotName).isRunning();
+                } catch (final VirtException e) {
+                    LOGGER.log(Level.FINE, MessageFormat.format("Cannot determine state of snapshot \"{0}\" for VM \"{1}\"",
+                            snapshotName, virtualMachine.getName()), e);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs an operation on the domain of the virtual machine, retrying it on
+     * transient errors as configured for its hypervisor. Every attempt
+     * resolves the domain again, in case its handle went stale.
+     */
+    private static void retry(final VirtualMachine virtualMachine, final String description,
+            final DomainOperation operation) throws VirtException {
+        final Hypervisor hypervisor = virtualMachine.getHypervisor();
+        hypervisor.getRetryPolicy().execute(description, () -> {
+            final IDomain domain = hypervisor.lookupDomain(virtualMachine.getName());
+            try {
+                operation.apply(domain);
+                return null;
+            } catch (final VirtException e) {
+                hypervisor.forgetDomain(virtualMachine.getName());
+                throw e;
+            }
+        });
     }
 
     private static @CheckForNull IDomain getDomain(final VirtualMachine virtualMachine,
             @CheckForNull final TaskListener listener) {
-        IDomain domain = null;
         try {
-            final Map<String, IDomain> domains = virtualMachine.getHypervisor().getDomains();
-            domain = domains.get(virtualMachine.getName());
-            if (domain == null) {
-                error(listener, "No VM named \"" + virtualMachine.getName() + "\"");
-            }
+            return virtualMachine.getHypervisor().lookupDomain(virtualMachine.getName());
         } catch (final VirtException e) {
-            error(listener, "Can't get VM domains: " + e);
+            error(listener, "No VM named \"" + virtualMachine.getName() + "\": " + e);
+            return null;
         }
-        return domain;
     }
 
     private static void log(@CheckForNull final TaskListener listener, final String message) {
@@ -0,0 +1,32 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically evicts idle connections from the hypervisor connection pools
+ * and validates the remaining ones, so that a broken connection is noticed
+ * before an agent launch needs it.
+ */
+@Extension
+public class ConnectionPoolMaintenance extends AsyncPeriodicWork {
+
+    public ConnectionPoolMaintenance() {
+        super("Libvirt connection pool maintenance");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(1);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        for (Hypervisor hypervisor : PluginImpl.getInstance().getServers()) {
+            hypervisor.maintainConnections();
+        }
+    }
+}
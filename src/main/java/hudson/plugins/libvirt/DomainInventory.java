@@ -0,0 +1,228 @@
+package hudson.plugins.libvirt;
+
+import hudson.plugins.libvirt.lib.ConnectionPool;
+import hudson.plugins.libvirt.lib.DomainLifecycleListener;
+import hudson.plugins.libvirt.lib.DomainSummary;
+import hudson.plugins.libvirt.lib.IConnect;
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the domains of one hypervisor.
+ *
+ * The cached inventory is invalidated whenever libvirt reports a domain
+ * lifecycle event. As events may get lost, e.g. while the event connection
+ * is being re-established, the inventory also expires after a fixed time.
+ *
+ * Single domains can also be resolved without loading the whole inventory.
+ * Their handles are memoized and revalidated with one cheap call once they
+ * are older than the expiry time.
+ *
+ * Domains are looked up on a connection leased from the pool and keep using
+ * it, so handles and the inventory are dropped once the pool closes the
+ * connection they were obtained from.
+ */
+final class DomainInventory implements DomainLifecycleListener, ConnectionPool.CloseListener {
+
+    private static final Logger LOGGER = Logger.getLogger(DomainInventory.class.getName());
+
+    /**
+     * Loads the domains from the hypervisor.
+     */
+    interface Loader {
+        Map<String, DomainSummary> load(IConnect connection) throws VirtException;
+    }
+
+    /**
+     * Resolves a single domain by name or UUID on the hypervisor.
+     */
+    interface Resolver {
+        IDomain resolve(IConnect connection, String nameOrUuid) throws VirtException;
+    }
+
+    private static final class Handle {
+        private final IDomain domain;
+        private final IConnect connection;
+        private final long validatedAt;
+
+        private Handle(IDomain domain, IConnect connection, long validatedAt) {
+            this.domain = domain;
+            this.connection = connection;
+            this.validatedAt = validatedAt;
+        }
+    }
+
+    private static final class Snapshot {
+        private final Map<String, DomainSummary> domains;
+        private final IConnect connection;
+        private final long loadedAt;
+        private final long generation;
+
+        private Snapshot(Map<String, DomainSummary> domains, IConnect connection, long loadedAt, long generation) {
+            this.domains = domains;
+            this.connection = connection;
+            this.loadedAt = loadedAt;
+            this.generation = generation;
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final Loader loader;
+    private final long ttlMillis;
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong definitionGeneration = new AtomicLong();
+    private final Object refreshLock = new Object();
+    private final Map<String, Handle> handles = new ConcurrentHashMap<>();
+    private volatile Snapshot snapshot;
+
+    DomainInventory(ConnectionPool pool, Loader loader, long ttlMillis) {
+        this.pool = pool;
+        this.loader = loader;
+        this.ttlMillis = ttlMillis;
+        pool.addCloseListener(this);
+    }
+
+    /**
+     * Returns the cached domains, reloading them if the cache is stale.
+     *
+     * @return an unmodifiable map of domain names to domain summaries
+     * @throws VirtException if the domains could not be loaded
+     */
+    Map<String, DomainSummary> get() throws VirtException {
+        Snapshot current = snapshot;
+        if (isFresh(current)) {
+            return current.domains;
+        }
+        synchronized (refreshLock) {
+            current = snapshot;
+            if (isFresh(current)) {
+                return current.domains;
+            }
+            long loadGeneration = generation.get();
+            // published while the connection is leased, so it cannot be closed before the snapshot is
+            Snapshot loaded = pool.execute(con -> {
+                Snapshot next = new Snapshot(Collections.unmodifiableMap(new HashMap<>(loader.load(con))), con,
+                                             System.currentTimeMillis(), loadGeneration);
+                snapshot = next;
+                return next;
+            });
+            if (current != null && !current.domains.keySet().equals(loaded.domains.keySet())) {
+                // catches definitions which were missed because no events were delivered
+                definitionGeneration.incrementAndGet();
+            }
+            return loaded.domains;
+        }
+    }
+
+    /**
+     * Returns a single domain, preferably from the memoized handles or the
+     * cached inventory, otherwise from the given resolver.
+     *
+     * @param nameOrUuid the name or UUID of the domain
+     * @param resolver looks up the domain on the hypervisor
+     * @return the domain
+     * @throws VirtException if the domain does not exist or could not be looked up
+     */
+    IDomain lookup(String nameOrUuid, Resolver resolver) throws VirtException {
+        long now = System.currentTimeMillis();
+        Handle handle = handles.get(nameOrUuid);
+        if (handle != null) {
+            if (now - handle.validatedAt < ttlMillis) {
+                return handle.domain;
+            }
+            try {
+                handle.domain.getState();
+                handles.replace(nameOrUuid, handle, new Handle(handle.domain, handle.connection, now));
+                return handle.domain;
+            } catch (VirtException e) {
+                LOGGER.log(Level.FINE, "Memoized handle of domain " + nameOrUuid + " is stale", e);
+                handles.remove(nameOrUuid, handle);
+            }
+        }
+
+        Snapshot current = snapshot;
+        if (isFresh(current)) {
+            DomainSummary summary = current.domains.get(nameOrUuid);
+            if (summary != null) {
+                return summary.getDomain();
+            }
+        }
+        // memoized while the connection is leased, so it cannot be closed before the handle is
+        return pool.execute(con -> {
+            IDomain domain = resolver.resolve(con, nameOrUuid);
+            handles.put(nameOrUuid, new Handle(domain, con, now));
+            return domain;
+        });
+    }
+
+    /**
+     * Drops the memoized handle of a domain, e.g. after an operation on it failed.
+     *
+     * @param nameOrUuid the name or UUID of the domain
+     */
+    void forget(String nameOrUuid) {
+        handles.remove(nameOrUuid);
+    }
+
+    /**
+     * Returns the cached domains without contacting the hypervisor, even if they are stale.
+     *
+     * @return the last loaded domains, or an empty map if none were loaded yet
+     */
+    Map<String, DomainSummary> peek() {
+        Snapshot current = snapshot;
+        return current != null ? current.domains : Collections.emptyMap();
+    }
+
+    /**
+     * Returns a counter which changes whenever a domain is defined, undefined
+     * or renamed, so that holders of resolved domains know when to re-resolve them.
+     *
+     * @return the current definition generation
+     */
+    long getDefinitionGeneration() {
+        return definitionGeneration.get();
+    }
+
+    /**
+     * Forces the next {@link #get()} to reload the domains.
+     */
+    void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    @Override
+    public void connectionClosed(IConnect connection) {
+        handles.values().removeIf(handle -> handle.connection == connection);
+        Snapshot current = snapshot;
+        if (current != null && current.connection == connection) {
+            // the states stay available through peek(), the domains are reloaded
+            invalidate();
+        }
+    }
+
+    @Override
+    public void onLifecycleEvent(String domainName, Event event) {
+        LOGGER.log(Level.FINE, "Domain {0} changed: {1}", new Object[]{domainName, event});
+        if (event == Event.DEFINED || event == Event.UNDEFINED) {
+            // a domain may have been redefined under the same name
+            handles.clear();
+            definitionGeneration.incrementAndGet();
+        }
+        invalidate();
+    }
+
+    private boolean isFresh(Snapshot current) {
+        return current != null
+                && current.generation == generation.get()
+                && System.currentTimeMillis() - current.loadedAt < ttlMillis;
+    }
+}
@@ -0,0 +1,245 @@
+package hudson.plugins.libvirt;
+
+import hudson.plugins.libvirt.lib.DomainState;
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.SystemProperties;
+
+/**
+ * Admits virtual machines to a hypervisor as long as the host has memory and
+ * CPUs left for them, within the configured overcommit ratios.
+ *
+ * The free memory of the host and the virtual CPUs of its active domains are
+ * sampled from libvirt every few seconds. Admitted virtual machines which were
+ * not active yet when the sample was taken are added on top.
+ * Virtual machines that are active already hold their resources and are always
+ * admitted.
+ *
+ * Sampling talks to libvirt outside of any monitor and publishes the sample
+ * and the configured resources of the virtual machines for all callers. Only
+ * the arithmetic of admissions is serialized by the monitor of this object.
+ * If the resources cannot be determined, only the limit of online agents
+ * applies.
+ */
+final class HostCapacity {
+
+    private static final Logger LOGGER = Logger.getLogger(HostCapacity.class.getName());
+
+    private static final long SAMPLE_TTL_MS = SystemProperties.getLong(
+            HostCapacity.class.getName() + ".sampleTtlMillis", TimeUnit.SECONDS.toMillis(10));
+
+    /**
+     * The resources a virtual machine is configured with.
+     */
+    private static final class Demand {
+        private final long memoryKiB;
+        private final int vcpus;
+        private final long definitionGeneration;
+
+        private Demand(long memoryKiB, int vcpus, long definitionGeneration) {
+            this.memoryKiB = memoryKiB;
+            this.vcpus = vcpus;
+            this.definitionGeneration = definitionGeneration;
+        }
+    }
+
+    private static final class Sample {
+        private final long takenAt;
+        private final long totalMemoryKiB;
+        private final long freeMemoryKiB;
+        private final int cpus;
+        private final int committedVcpus;
+        private final Set<String> activeDomains;
+
+        private Sample(long takenAt, long totalMemoryKiB, long freeMemoryKiB, int cpus, int committedVcpus,
+                       Set<String> activeDomains) {
+            this.takenAt = takenAt;
+            this.totalMemoryKiB = totalMemoryKiB;
+            this.freeMemoryKiB = freeMemoryKiB;
+            this.cpus = cpus;
+            this.committedVcpus = committedVcpus;
+            this.activeDomains = activeDomains;
+        }
+    }
+
+    private final Hypervisor hypervisor;
+    private final Map<String, Demand> demands = new ConcurrentHashMap<>();
+    /**
+     * The virtual machines currently online.
+     */
+    private final Set<String> admitted = new HashSet<>();
+    private final Object sampleLock = new Object();
+    private volatile Sample sample;
+
+    HostCapacity(Hypervisor hypervisor) {
+        this.hypervisor = hypervisor;
+    }
+
+    /**
+     * @param vmName the virtual machine to start
+     * @param memoryRatio how far memory may be overcommitted, 0 to not check memory
+     * @param cpuRatio how many virtual CPUs may be committed per host CPU, 0 to not check CPUs
+     * @return whether the host has enough resources left for the virtual machine
+     */
+    boolean fits(String vmName, double memoryRatio, double cpuRatio) {
+        Demand demand;
+        Sample current;
+        try {
+            demand = getDemand(vmName);
+            current = getSample();
+        } catch (VirtException e) {
+            logUnknown(vmName, e);
+            return true;
+        }
+        synchronized (this) {
+            return check(vmName, demand, current, memoryRatio, cpuRatio) == Admission.ADMITTED;
+        }
+    }
+
+    /**
+     * Admits the virtual machine if it fits, and counts it against the host until a sample shows it active.
+     *
+     * @param vmName the virtual machine to start
+     * @param memoryRatio how far memory may be overcommitted, 0 to not check memory
+     * @param cpuRatio how many virtual CPUs may be committed per host CPU, 0 to not check CPUs
+     * @return {@link Admission#ADMITTED} if the virtual machine was admitted, otherwise why not
+     */
+    Admission tryAdmit(String vmName, double memoryRatio, double cpuRatio) {
+        Demand demand;
+        Sample current;
+        try {
+            demand = getDemand(vmName);
+            current = getSample();
+        } catch (VirtException e) {
+            logUnknown(vmName, e);
+            return Admission.ADMITTED;
+        }
+        synchronized (this) {
+            Admission admission = check(vmName, demand, current, memoryRatio, cpuRatio);
+            if (admission == Admission.ADMITTED) {
+                admitted.add(vmName);
+            }
+            return admission;
+        }
+    }
+
+    /**
+     * The launch reports the hypervisor being unreachable more clearly than a
+     * refused admission would, so the virtual machine is left to the limit of
+     * online agents.
+     */
+    private void logUnknown(String vmName, VirtException e) {
+        LOGGER.log(Level.WARNING, "Cannot determine the resources of " + hypervisor.getHypervisorHost()
+                                  + ", admitting " + vmName + " within the limit of online agents only", e);
+    }
+
+    private Admission check(String vmName, Demand demand, Sample current, double memoryRatio, double cpuRatio) {
+        if (current.activeDomains.contains(vmName)) {
+            return Admission.ADMITTED;
+        }
+
+        long pendingMemoryKiB = 0;
+        int pendingVcpus = 0;
+        for (String other : admitted) {
+            Demand pending = demands.get(other);
+            if (pending != null && !current.activeDomains.contains(other)) {
+                pendingMemoryKiB += pending.memoryKiB;
+                pendingVcpus += pending.vcpus;
+            }
+        }
+
+        if (memoryRatio > 0) {
+            long overcommitKiB = (long) (current.totalMemoryKiB * (memoryRatio - 1));
+            if (demand.memoryKiB > current.totalMemoryKiB + overcommitKiB) {
+                return Admission.TOO_LARGE;
+            }
+            long headroomKiB = current.freeMemoryKiB + overcommitKiB - pendingMemoryKiB;
+            if (demand.memoryKiB > headroomKiB) {
+                LOGGER.log(Level.INFO, "Not admitting {0} on {1}: needs {2} MiB of memory, {3} MiB left",
+                           new Object[]{vmName, hypervisor.getHypervisorHost(),
+                                        demand.memoryKiB / 1024, Math.max(0, headroomKiB) / 1024});
+                return Admission.NO_RESOURCES;
+            }
+        }
+        if (cpuRatio > 0) {
+            int limit = (int) (current.cpus * cpuRatio);
+            if (demand.vcpus > limit) {
+                return Admission.TOO_LARGE;
+            }
+            int committed = current.committedVcpus + pendingVcpus;
+            if (committed + demand.vcpus > limit) {
+                LOGGER.log(Level.INFO, "Not admitting {0} on {1}: needs {2} vCPUs, {3} of {4} committed",
+                           new Object[]{vmName, hypervisor.getHypervisorHost(), demand.vcpus, committed, limit});
+                return Admission.NO_RESOURCES;
+            }
+        }
+        return Admission.ADMITTED;
+    }
+
+    /**
+     * @param vmName a virtual machine which went offline
+     */
+    synchronized void release(String vmName) {
+        admitted.remove(vmName);
+    }
+
+    private Demand getDemand(final String vmName) throws VirtException {
+        long generation = hypervisor.getDomainDefinitionGeneration();
+        Demand demand = demands.get(vmName);
+        if (demand == null || demand.definitionGeneration != generation) {
+            IDomain domain = hypervisor.lookupDomain(vmName);
+            demand = new Demand(domain.getMaxMemory(), domain.getVcpus(), generation);
+            demands.put(vmName, demand);
+        }
+        return demand;
+    }
+
+    private Sample getSample() throws VirtException {
+        Sample current = sample;
+        if (current != null && System.currentTimeMillis() - current.takenAt < SAMPLE_TTL_MS) {
+            return current;
+        }
+        // one caller samples, the others wait for its result instead of sampling as well
+        synchronized (sampleLock) {
+            current = sample;
+            long now = System.currentTimeMillis();
+            if (current != null && now - current.takenAt < SAMPLE_TTL_MS) {
+                return current;
+            }
+            current = load(now);
+            sample = current;
+            return current;
+        }
+    }
+
+    private Sample load(final long now) throws VirtException {
+        return hypervisor.getConnectionPool().execute(con -> {
+            Set<String> active = new HashSet<>();
+            int vcpus = 0;
+            for (int id : con.listDomains()) {
+                try {
+                    IDomain domain = con.domainLookupByID(id);
+                    if (domain.getState() == DomainState.SHUTOFF) {
+                        continue;
+                    }
+                    active.add(domain.getName());
+                    vcpus += domain.getVcpus();
+                } catch (VirtException e) {
+                    // the domain went away while sampling
+                    LOGGER.log(Level.FINE, "Skipping domain " + id + " while sampling", e);
+                }
+            }
+            return new Sample(now, con.getNodeMemory(), con.getFreeMemory() / 1024, con.getNodeCpus(), vcpus,
+                              active);
+        });
+    }
+}
@@ -24,22 +24,33 @@ import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredenti
 import com.cloudbees.plugins.credentials.domains.SchemeRequirement;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Item;
 import hudson.model.Label;
+import hudson.model.Node;
 import hudson.model.Queue;
+import hudson.model.TaskListener;
 import hudson.model.queue.Tasks;
 import hudson.plugins.libvirt.lib.ConnectionBuilder;
+import hudson.plugins.libvirt.lib.ConnectionPool;
+import hudson.plugins.libvirt.lib.DomainState;
+import hudson.plugins.libvirt.lib.DomainSummary;
 import hudson.plugins.libvirt.lib.IConnect;
 import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.RetryPolicy;
 import hudson.plugins.libvirt.lib.VirtException;
 import hudson.security.ACL;
 import hudson.slaves.Cloud;
+import hudson.slaves.ComputerLauncher;
 import hudson.slaves.NodeProvisioner;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -47,22 +58,29 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 
 import hudson.util.ListBoxModel;
 import java.util.Arrays;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import net.sf.json.JSONObject;
 import org.acegisecurity.Authentication;
 import org.apache.commons.lang.StringUtils;
 
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.verb.POST;
@@ -77,6 +95,18 @@ public class Hypervisor extends Cloud {
 
     private static final Logger LOGGER = Logger.getLogger(Hypervisor.class.getName());
 
+    static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    private static final long CONNECTION_MAX_IDLE_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Pattern UUID_PATTERN =
+            Pattern.compile("\\p{XDigit}{8}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{12}");
+
+    public static final int DEFAULT_ADMISSION_TIMEOUT_SECONDS = 300;
+
+    private static final long INVENTORY_TTL_MS = SystemProperties.getLong(
+            Hypervisor.class.getName() + ".inventoryTtlMillis", TimeUnit.SECONDS.toMillis(30));
+
     private final String hypervisorType;
     private final String hypervisorTransport;
     private final String hypervisorHost;
@@ -84,9 +114,29 @@ public class Hypervisor extends Cloud {
     private int hypervisorSshPort;
     private final String username;
     private final int maxOnlineSlaves;
-    private transient int currentOnlineSlaveCount = 0;
-    private transient ConcurrentHashMap<String, String> currentOnline;
-    private transient IConnect connection;
+    private transient volatile OnlineAgents onlineAgents;
+    private transient ConnectionPool connectionPool;
+    private transient volatile DomainInventory domainInventory;
+    private int warmPoolSize;
+    private List<CloneTemplate> templates;
+    private boolean provisionAgents;
+    private double memoryOvercommitRatio;
+    private double cpuOvercommitRatio;
+    private int admissionTimeoutSeconds;
+    private int retryAttempts;
+    private long retryInitialDelayMillis;
+    private transient WarmPool warmPool;
+    private transient StaticPool staticPool;
+    private transient volatile HostCapacity hostCapacity;
+    private transient volatile AdmissionQueue admissionQueue;
+    private transient volatile SnapshotTracker snapshotTracker;
+    private transient ExecutorService resetExecutor;
+    private transient volatile String description;
+    private transient volatile String uri;
+    private transient volatile IConnect eventConnection;
+    private transient boolean subscribingDomainEvents;
+    private transient boolean closed;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
     private final String credentialsId;
 
     @DataBoundConstructor
@@ -118,10 +168,21 @@ public class Hypervisor extends Cloud {
         this.credentialsId = credentialsId;
     }
 
-    protected void ensureLists() {
-        if (currentOnline == null) {
-            currentOnline = new ConcurrentHashMap<>();
+    /**
+     * Not guarded by the monitor of the hypervisor, which is also held while talking to libvirt.
+     */
+    private OnlineAgents getOnlineAgents() {
+        OnlineAgents online = onlineAgents;
+        if (online == null) {
+            synchronized (this) {
+                online = onlineAgents;
+                if (online == null) {
+                    online = new OnlineAgents();
+                    onlineAgents = online;
+                }
+            }
         }
+        return online;
     }
 
     private ConnectionBuilder createBuilder() {
@@ -133,53 +194,157 @@ public class Hypervisor extends Cloud {
                 .hypervisorSysUrl(hypervisorSystemUrl);
     }
 
-    private synchronized IConnect getOrCreateConnection() throws VirtException {
-
-        if (connection == null || !connection.isConnected()) {
+    /**
+     * Returns the pool of connections to this hypervisor, creating it on first use.
+     *
+     * @return the connection pool
+     */
+    synchronized ConnectionPool getConnectionPool() {
+        if (connectionPool == null) {
+            LOGGER.log(Level.INFO, "Creating connection pool of size {0} for hypervisor {1} as {2}/******",
+                    new Object[]{getMaxConnections(), hypervisorHost, username});
+            connectionPool = new ConnectionPool(getHypervisorDescription(),
+                    () -> createBuilder().build(), getMaxConnections());
+            if (closed) {
+                // still usable, but connections are not kept
+                connectionPool.close();
+            }
+        }
+        return connectionPool;
+    }
 
-            ConnectionBuilder builder = createBuilder();
+    /**
+     * Closes connections which have been idle for too long and validates the remaining ones.
+     * Also re-establishes the domain event subscription if it was lost.
+     */
+    void maintainConnections() {
+        ConnectionPool pool;
+        DomainInventory inventory;
+        synchronized (this) {
+            pool = connectionPool;
+            inventory = domainInventory;
+        }
+        if (pool != null) {
+            pool.maintain(CONNECTION_MAX_IDLE_MS);
+        }
+        if (inventory != null) {
+            subscribeDomainEvents(inventory);
+        }
+    }
 
-            LOGGER.log(Level.INFO,
-                       "Trying to establish a connection to hypervisor URI: {0} as {1}/******",
-                    new Object[]{builder.constructHypervisorURI(), username});
+    private DomainInventory getDomainInventory() {
+        DomainInventory inventory = domainInventory;
+        if (inventory != null) {
+            return inventory;
+        }
+        boolean created = false;
+        synchronized (this) {
+            if (domainInventory == null) {
+                domainInventory = new DomainInventory(getConnectionPool(), Hypervisor::loadDomains, INVENTORY_TTL_MS);
+                created = true;
+            }
+            inventory = domainInventory;
+        }
+        if (created) {
+            subscribeDomainEvents(inventory);
+        }
+        return inventory;
+    }
 
+    /**
+     * Keeps a dedicated connection open on which libvirt reports domain
+     * lifecycle events to the inventory. Without it, the inventory falls back
+     * to expiring after a fixed time.
+     *
+     * Connecting and probing happen without holding the monitor of this
+     * object, so an unresponsive host does not block other callers; the
+     * monitor is only taken to publish or swap the connection.
+     */
+    private void subscribeDomainEvents(DomainInventory inventory) {
+        IConnect current = eventConnection;
+        if (current != null) {
             try {
-                connection = builder.build();
-                LOGGER.log(Level.INFO,
-                           "Established connection to hypervisor URI: {0} as {1}/******",
-                        new Object[]{builder.constructHypervisorURI(), username});
+                current.getVersion();
+                return;
             } catch (VirtException e) {
-                LogRecord rec =
-                        new LogRecord(Level.SEVERE,
-                                      "Failed to establish connection to hypervisor URI: {0} as {1}/******");
-                rec.setThrown(e);
-                rec.setParameters(new Object[]{builder.constructHypervisorURI(), username});
-                LOGGER.log(rec);
+                LOGGER.log(Level.FINE, "Domain event connection to " + hypervisorHost + " is broken", e);
+                discardEventConnection(current);
             }
-        } else {
+        }
+
+        synchronized (this) {
+            if (subscribingDomainEvents || closed) {
+                return;
+            }
+            subscribingDomainEvents = true;
+        }
+        try {
+            IConnect con = null;
             try {
-                // the connection appears to be up but might actually be dead (e.g. due to a restart of libvirtd)
-                // lets try a simple function call and see if it turns out ok
-                connection.getVersion();
-            } catch (VirtException lve) {
-                ConnectionBuilder builder = createBuilder();
-                LogRecord rec =
-                        new LogRecord(Level.WARNING,
-                                      "Connection appears to be broken, trying to reconnect: {0} as {1}/******");
-                rec.setParameters(new Object[]{builder.constructHypervisorURI(), username});
-                LOGGER.log(rec);
-                try {
-                    connection = builder.build();
-                } catch (VirtException lve2) {
-                    rec = new LogRecord(Level.SEVERE,
-                                        "Failed to re-establish connection to hypervisor URI: {0} as {1}/******");
-                    rec.setThrown(lve2);
-                    rec.setParameters(new Object[]{builder.constructHypervisorURI(), username});
-                    LOGGER.log(rec);
+                con = createBuilder().withEvents().build();
+                con.addLifecycleListener(inventory);
+            } catch (VirtException | UnsatisfiedLinkError e) {
+                if (con != null) {
+                    closeQuietly(con);
+                    con = null;
                 }
+                LOGGER.log(Level.FINE, "Cannot subscribe to domain events of hypervisor " + hypervisorHost
+                        + ", falling back to periodic inventory refresh", e);
+            }
+            if (con != null) {
+                IConnect replaced;
+                synchronized (this) {
+                    if (closed) {
+                        replaced = con;
+                    } else {
+                        replaced = eventConnection;
+                        eventConnection = con;
+                    }
+                }
+                if (replaced != null) {
+                    closeQuietly(replaced);
+                }
+                LOGGER.log(Level.FINE, "Subscribed to domain events of hypervisor {0}", hypervisorHost);
+            }
+            // events may have been missed while not subscribed
+            inventory.invalidate();
+        } finally {
+            synchronized (this) {
+                subscribingDomainEvents = false;
+            }
+        }
+    }
+
+    /**
+     * Closes the event connection, unless it has been replaced already.
+     */
+    private void discardEventConnection(IConnect con) {
+        synchronized (this) {
+            if (eventConnection != con) {
+                return;
             }
+            eventConnection = null;
+        }
+        closeQuietly(con);
+    }
+
+    private void closeEventConnection() {
+        IConnect con;
+        synchronized (this) {
+            con = eventConnection;
+            eventConnection = null;
+        }
+        if (con != null) {
+            closeQuietly(con);
+        }
+    }
+
+    private static void closeQuietly(IConnect con) {
+        try {
+            con.close();
+        } catch (VirtException e) {
+            LOGGER.log(Level.FINE, "Failed to close domain event connection", e);
         }
-        return connection;
     }
 
     public String getHypervisorHost() {
@@ -214,73 +379,353 @@ public class Hypervisor extends Cloud {
         return maxOnlineSlaves;
     }
 
-    public synchronized int getCurrentOnlineSlaveCount() {
-        return currentOnlineSlaveCount;
+    public int getMaxConnections() {
+        return maxConnections > 0 ? maxConnections : DEFAULT_MAX_CONNECTIONS;
     }
 
-    public String getHypervisorDescription() {
-        return getHypervisorType() + "+" + getHypervisorTransport() + " - " + getHypervisorHost();
+    @DataBoundSetter
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
     }
 
-    public synchronized Map<String, IDomain> getDomains() throws VirtException {
-        Map<String, IDomain> domains = new HashMap<>();
-        IConnect con = getOrCreateConnection();
-        LogRecord info = new LogRecord(Level.FINE, "Getting hypervisor domains.");
-        LOGGER.log(info);
-        if (con != null) {
-            for (String c : con.listDefinedDomains()) {
-                if (c != null && !c.isEmpty()) {
-                    IDomain domain;
-                    try {
-                        domain = con.domainLookupByName(c);
-                        domains.put(domain.getName(), domain);
-                    } catch (VirtException e) {
-                        LogRecord rec =
-                                new LogRecord(Level.WARNING,
-                                              "Error retrieving information for domain with name: {0}.");
-                        rec.setParameters(new Object[]{c});
-                        rec.setThrown(e);
-                        LOGGER.log(rec);
+    public int getWarmPoolSize() {
+        return warmPoolSize;
+    }
+
+    @DataBoundSetter
+    public void setWarmPoolSize(int warmPoolSize) {
+        this.warmPoolSize = Math.max(0, warmPoolSize);
+    }
+
+    private synchronized WarmPool getWarmPool() {
+        if (warmPool == null) {
+            warmPool = new WarmPool(this);
+        }
+        return warmPool;
+    }
+
+    /**
+     * Boots and suspends offline agents in the background until the warm pool is full again.
+     */
+    public void refillWarmPool() {
+        if (warmPoolSize > 0) {
+            getWarmPool().requestRefill();
+        }
+    }
+
+    /**
+     * @return whether the predefined agents of this hypervisor are launched as the load of their labels demands
+     */
+    public boolean isProvisionAgents() {
+        return provisionAgents;
+    }
+
+    @DataBoundSetter
+    public void setProvisionAgents(boolean provisionAgents) {
+        this.provisionAgents = provisionAgents;
+    }
+
+    private synchronized StaticPool getStaticPool() {
+        if (staticPool == null) {
+            staticPool = new StaticPool(this);
+        }
+        return staticPool;
+    }
+
+    /**
+     * @return the computers of the predefined agents of this hypervisor which are offline and could be launched
+     */
+    List<VirtualMachineSlaveComputer> getOfflineComputers() {
+        List<VirtualMachineSlaveComputer> computers = new ArrayList<>();
+        for (Node node : Jenkins.get().getNodes()) {
+            if (!(node instanceof VirtualMachineSlave) || node instanceof CloneSlave) {
+                continue;
+            }
+            Computer computer = node.toComputer();
+            if (!(computer instanceof VirtualMachineSlaveComputer)
+                || !computer.isOffline() || computer.isConnecting() || computer.isTemporarilyOffline()) {
+                continue;
+            }
+            ComputerLauncher launcher = ((VirtualMachineSlaveComputer) computer).getLauncher();
+            try {
+                if (launcher instanceof VirtualMachineLauncher
+                    && ((VirtualMachineLauncher) launcher).findOurHypervisorInstance() == this) {
+                    computers.add((VirtualMachineSlaveComputer) computer);
+                }
+            } catch (VirtException e) {
+                LOGGER.log(Level.FINE, "No hypervisor for " + computer.getName(), e);
+            }
+        }
+        return computers;
+    }
+
+    /**
+     * @return how far the memory of the host may be overcommitted, 0 if memory is not checked
+     */
+    public double getMemoryOvercommitRatio() {
+        return memoryOvercommitRatio;
+    }
+
+    @DataBoundSetter
+    public void setMemoryOvercommitRatio(double memoryOvercommitRatio) {
+        this.memoryOvercommitRatio = Math.max(0, memoryOvercommitRatio);
+    }
+
+    /**
+     * @return how many virtual CPUs may be committed per CPU of the host, 0 if CPUs are not checked
+     */
+    public double getCpuOvercommitRatio() {
+        return cpuOvercommitRatio;
+    }
+
+    @DataBoundSetter
+    public void setCpuOvercommitRatio(double cpuOvercommitRatio) {
+        this.cpuOvercommitRatio = Math.max(0, cpuOvercommitRatio);
+    }
+
+    private boolean isResourceAdmission() {
+        return memoryOvercommitRatio > 0 || cpuOvercommitRatio > 0;
+    }
+
+    private HostCapacity getHostCapacity() {
+        HostCapacity capacity = hostCapacity;
+        if (capacity == null) {
+            synchronized (this) {
+                capacity = hostCapacity;
+                if (capacity == null) {
+                    capacity = new HostCapacity(this);
+                    hostCapacity = capacity;
+                }
+            }
+        }
+        return capacity;
+    }
+
+    /**
+     * @return how long a launch waits for the hypervisor to have capacity for it
+     */
+    public int getAdmissionTimeoutSeconds() {
+        return admissionTimeoutSeconds > 0 ? admissionTimeoutSeconds : DEFAULT_ADMISSION_TIMEOUT_SECONDS;
+    }
+
+    @DataBoundSetter
+    public void setAdmissionTimeoutSeconds(int admissionTimeoutSeconds) {
+        this.admissionTimeoutSeconds = admissionTimeoutSeconds;
+    }
+
+    private AdmissionQueue getAdmissionQueue() {
+        AdmissionQueue queue = admissionQueue;
+        if (queue == null) {
+            synchronized (this) {
+                queue = admissionQueue;
+                if (queue == null) {
+                    queue = new AdmissionQueue(this);
+                    if (closed) {
+                        queue.close();
                     }
+                    admissionQueue = queue;
                 }
             }
-            for (int c : con.listDomains()) {
-                IDomain domain;
-                try {
-                    domain = con.domainLookupByID(c);
-                    domains.put(domain.getName(), domain);
-                } catch (VirtException e) {
-                    LogRecord rec =
-                            new LogRecord(Level.WARNING,
-                                          "Error retrieving information for domain with id: {0}.");
-                    rec.setParameters(new Object[]{c});
-                    rec.setThrown(e);
-                    LOGGER.log(rec);
+        }
+        return queue;
+    }
+
+    /**
+     * Marks the virtual machine of an agent online, waiting in line for a free
+     * slot if the hypervisor is at capacity. No thread is blocked while waiting.
+     *
+     * @param node the agent to launch
+     * @param vmName the virtual machine of the agent
+     * @param listener the launch log
+     * @return completes with whether the virtual machine was marked online before the admission timeout,
+     *         or exceptionally if this hypervisor is closed meanwhile
+     */
+    public CompletableFuture<Boolean> admitVM(Node node, String vmName, TaskListener listener) {
+        return getAdmissionQueue().admit(node, vmName, TimeUnit.SECONDS.toMillis(getAdmissionTimeoutSeconds()),
+                                         listener);
+    }
+
+    /**
+     * @return the snapshots the virtual machines of this hypervisor were last reverted to
+     */
+    SnapshotTracker getSnapshotTracker() {
+        SnapshotTracker tracker = snapshotTracker;
+        if (tracker == null) {
+            synchronized (this) {
+                tracker = snapshotTracker;
+                if (tracker == null) {
+                    tracker = new SnapshotTracker();
+                    snapshotTracker = tracker;
                 }
             }
-        } else {
-            LogRecord rec =
-                    new LogRecord(Level.SEVERE,
-                                  "Cannot connect to Hypervisor {0} as {1}/******");
-            rec.setParameters(new Object[]{hypervisorHost, username});
-            LOGGER.log(rec);
         }
+        return tracker;
+    }
+
+    public List<CloneTemplate> getTemplates() {
+        return templates != null ? templates : Collections.emptyList();
+    }
+
+    @DataBoundSetter
+    public void setTemplates(List<CloneTemplate> templates) {
+        this.templates = templates != null ? new ArrayList<>(templates) : null;
+    }
+
+    public int getRetryAttempts() {
+        return retryAttempts > 0 ? retryAttempts : RetryPolicy.DEFAULT_MAX_ATTEMPTS;
+    }
 
+    @DataBoundSetter
+    public void setRetryAttempts(int retryAttempts) {
+        this.retryAttempts = retryAttempts;
+    }
+
+    public long getRetryInitialDelayMillis() {
+        return retryInitialDelayMillis > 0 ? retryInitialDelayMillis : RetryPolicy.DEFAULT_INITIAL_DELAY_MS;
+    }
+
+    @DataBoundSetter
+    public void setRetryInitialDelayMillis(long retryInitialDelayMillis) {
+        this.retryInitialDelayMillis = retryInitialDelayMillis;
+    }
+
+    /**
+     * @return how operations on the virtual machines of this hypervisor are retried
+     */
+    public RetryPolicy getRetryPolicy() {
+        return new RetryPolicy(getRetryAttempts(), getRetryInitialDelayMillis());
+    }
+
+    /**
+     * Resets one of the virtual machines in the background, i.e. stops it,
+     * reverts it and releases its capacity. Resets of different virtual
+     * machines run in parallel, at most as many as there are connections.
+     *
+     * @param reset the reset
+     * @return completes when the reset is done
+     */
+    synchronized CompletableFuture<Void> submitReset(Runnable reset) {
+        if (closed) {
+            return CompletableFuture.runAsync(reset, Computer.threadPoolForRemoting);
+        }
+        if (resetExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(getMaxConnections(), getMaxConnections(),
+                    1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "libvirt reset " + hypervisorHost));
+            executor.allowCoreThreadTimeOut(true);
+            resetExecutor = executor;
+        }
+        return CompletableFuture.runAsync(reset, resetExecutor);
+    }
+
+    public int getCurrentOnlineSlaveCount() {
+        return getOnlineAgents().size();
+    }
+
+    public String getHypervisorDescription() {
+        String d = description;
+        if (d == null) {
+            d = getHypervisorType() + "+" + getHypervisorTransport() + " - " + getHypervisorHost();
+            description = d;
+        }
+        return d;
+    }
+
+    /**
+     * Returns the domains defined on the hypervisor. The result is served from
+     * a cache which is kept current through libvirt domain lifecycle events.
+     *
+     * @return an unmodifiable map of domain names to domains
+     * @throws VirtException if the domains could not be retrieved
+     */
+    public Map<String, IDomain> getDomains() throws VirtException {
+        return Maps.transformValues(getDomainSummaries(), DomainSummary::getDomain);
+    }
+
+    /**
+     * Returns the domains defined on the hypervisor together with their
+     * state at the time the inventory was last refreshed.
+     *
+     * @return an unmodifiable map of domain names to domain summaries
+     * @throws VirtException if the domains could not be retrieved
+     */
+    public Map<String, DomainSummary> getDomainSummaries() throws VirtException {
+        return getDomainInventory().get();
+    }
+
+    /**
+     * Returns the state of a domain as of the last inventory refresh, without
+     * contacting the hypervisor or taking the monitor of this object, so it is
+     * safe to call with the queue locked.
+     *
+     * @param vmName the name of the domain
+     * @return the state, or null if unknown because the domain is not in the inventory or none was loaded yet
+     */
+    public DomainState peekDomainState(String vmName) {
+        DomainInventory inventory = domainInventory;
+        if (inventory == null) {
+            return null;
+        }
+        DomainSummary summary = inventory.peek().get(vmName);
+        return summary != null ? summary.getState() : null;
+    }
+
+    /**
+     * Returns a single domain without enumerating all domains of the
+     * hypervisor. The handle is memoized, so repeated operations on the same
+     * virtual machine stay cheap no matter how many domains the host has.
+     *
+     * @param nameOrUuid the name or UUID of the domain
+     * @return the domain
+     * @throws VirtException if there is no such domain or it could not be looked up
+     */
+    public IDomain lookupDomain(String nameOrUuid) throws VirtException {
+        return getDomainInventory().lookup(nameOrUuid, (con, key) ->
+                UUID_PATTERN.matcher(key).matches()
+                        ? con.domainLookupByUUIDString(key)
+                        : con.domainLookupByName(key));
+    }
+
+    /**
+     * Drops the memoized handle of a domain so that the next
+     * {@link #lookupDomain(String)} resolves it again.
+     *
+     * @param nameOrUuid the name or UUID of the domain
+     */
+    public void forgetDomain(String nameOrUuid) {
+        getDomainInventory().forget(nameOrUuid);
+    }
+
+    /**
+     * Returns a counter which changes whenever a domain of this hypervisor is
+     * defined, undefined or renamed.
+     *
+     * @return the current definition generation
+     */
+    public long getDomainDefinitionGeneration() {
+        return getDomainInventory().getDefinitionGeneration();
+    }
+
+    private static Map<String, DomainSummary> loadDomains(IConnect con) throws VirtException {
+        LogRecord info = new LogRecord(Level.FINE, "Getting hypervisor domains.");
+        LOGGER.log(info);
+        Map<String, DomainSummary> domains = new HashMap<>();
+        for (DomainSummary domain : con.listDomainSummaries()) {
+            domains.put(domain.getName(), domain);
+        }
         return domains;
     }
 
     /**
-     * Returns a <code>List</code> of VMs configured on the hypervisor. This
-     * method always retrieves the current list of VMs to ensure that newly
-     * available instances show up right away.
+     * Returns a <code>List</code> of VMs configured on the hypervisor. Newly
+     * available instances show up as soon as libvirt reports them.
      *
      * @return the virtual machines
      */
-    public synchronized List<VirtualMachine> getVirtualMachines() {
+    public List<VirtualMachine> getVirtualMachines() {
         List<VirtualMachine> vmList = new ArrayList<>();
         try {
-            Map<String, IDomain> domains = getDomains();
-            for (String domainName : domains.keySet()) {
+            for (String domainName : getDomainSummaries().keySet()) {
                 vmList.add(new VirtualMachine(this, domainName));
             }
         } catch (VirtException e) {
@@ -301,16 +746,15 @@ public class Hypervisor extends Cloud {
      * @param virtualMachineName the name of the vm
      * @return the array of snapshot ids (can be empty)
      */
-    public synchronized String[] getSnapshots(String virtualMachineName) {
+    public String[] getSnapshots(String virtualMachineName) {
         try {
-            for (IDomain domain : getDomains().values()) {
-                if (domain.getName().equals(virtualMachineName)) {
-                    LogRecord rec =
-                            new LogRecord(Level.FINE,
-                                          "Fetching snapshots for " + virtualMachineName + ": " + domain.snapshotNum());
-                    LOGGER.log(rec);
-                    return domain.snapshotListNames();
-                }
+            IDomain domain = getDomains().get(virtualMachineName);
+            if (domain != null) {
+                LogRecord rec =
+                        new LogRecord(Level.FINE,
+                                      "Fetching snapshots for " + virtualMachineName + ": " + domain.snapshotNum());
+                LOGGER.log(rec);
+                return domain.snapshotListNames();
             }
         } catch (VirtException lve) {
             LogRecord rec =
@@ -323,14 +767,83 @@ public class Hypervisor extends Cloud {
         return new String[0];
     }
 
+    /**
+     * Launches offline predefined agents for the label if enabled, then provisions
+     * linked clones of the first template matching the label for the remaining
+     * workload, as far as the capacity of the hypervisor allows.
+     */
     @Override
-    public Collection<NodeProvisioner.PlannedNode> provision(Label label, int i) {
-        return Collections.emptySet();
+    public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
+        List<NodeProvisioner.PlannedNode> planned = new ArrayList<>();
+        int excess = excessWorkload;
+        int capacity = getRemainingCapacity();
+        if (provisionAgents) {
+            for (NodeProvisioner.PlannedNode node : getStaticPool().provision(label, excess, capacity)) {
+                planned.add(node);
+                excess -= node.numExecutors;
+                // they are not online yet, so they still count against the capacity
+                capacity--;
+            }
+        }
+
+        final CloneTemplate template = getTemplate(label);
+        if (template == null) {
+            return planned;
+        }
+        int clones = 0;
+        while (excess > 0 && clones < capacity && template.reserve(this)) {
+            String displayName = template.getTemplateName() + " clone";
+            planned.add(new NodeProvisioner.PlannedNode(displayName,
+                    Computer.threadPoolForRemoting.submit(() -> template.provision(this)),
+                    template.getNumExecutors()));
+            excess -= template.getNumExecutors();
+            clones++;
+        }
+        if (clones > 0) {
+            LOGGER.log(Level.INFO, "Provisioning {0} linked clone(s) of {1} on {2} for {3}",
+                       new Object[]{clones, template.getTemplateName(), hypervisorHost, label});
+        }
+        return planned;
     }
 
     @Override
     public boolean canProvision(Label label) {
-        return false;
+        return getTemplate(label) != null || provisionAgents && getStaticPool().canProvision(label);
+    }
+
+    private CloneTemplate getTemplate(Label label) {
+        for (CloneTemplate template : getTemplates()) {
+            if (template.matches(label) && template.isLaunchable()) {
+                return template;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Clones still being defined count against the maximum number of online agents.
+     *
+     * @return how many more agents may be provisioned
+     */
+    private int getRemainingCapacity() {
+        if (maxOnlineSlaves <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        int provisioning = 0;
+        for (CloneTemplate template : getTemplates()) {
+            provisioning += template.getProvisioningCount();
+        }
+        return Math.max(0, maxOnlineSlaves - getCurrentOnlineSlaveCount() - provisioning);
+    }
+
+    /**
+     * @return the share of the maximum number of online agents still available, 1 if there is no maximum
+     */
+    double getFreeCapacityRatio() {
+        if (maxOnlineSlaves <= 0) {
+            return 1;
+        }
+        return (double) getRemainingCapacity() / maxOnlineSlaves;
     }
 
     @Override
@@ -338,70 +851,154 @@ public class Hypervisor extends Cloud {
         return "Hypervisor{hypervisorUri='" + hypervisorHost + "', username='" + username + "'}";
     }
 
-    public synchronized Boolean canMarkVMOnline(String slaveName, String vmName) {
-        ensureLists();
+    public Boolean canMarkVMOnline(String slaveName, String vmName) {
+        OnlineAgents online = getOnlineAgents();
 
         // Don't allow more than max.
-        if (maxOnlineSlaves > 0 && currentOnline.size() == maxOnlineSlaves) {
+        if (maxOnlineSlaves > 0 && online.size() >= maxOnlineSlaves) {
             return Boolean.FALSE;
         }
 
         // Don't allow two slaves to the same VM to fire up.
-        if (currentOnline.containsValue(vmName)) {
+        if (online.isVirtualMachineInUse(vmName)) {
             return Boolean.FALSE;
         }
 
         // Don't allow two instances of the same slave, although Jenkins will
         // probably not encounter this.
-        if (currentOnline.containsKey(slaveName)) {
+        if (online.isAgentOnline(slaveName)) {
+            return Boolean.FALSE;
+        }
+
+        if (isMisconfigured(slaveName, vmName)) {
             return Boolean.FALSE;
         }
 
-        // Don't allow a misconfigured slave to try start
+        // Don't allow more than the host has memory and CPUs for.
+        if (isResourceAdmission() && !getHostCapacity().fits(vmName, memoryOvercommitRatio, cpuOvercommitRatio)) {
+            return Boolean.FALSE;
+        }
+
+        return Boolean.TRUE;
+    }
+
+    /**
+     * Don't allow a misconfigured slave to try start.
+     */
+    private static boolean isMisconfigured(String slaveName, String vmName) {
         if ("".equals(vmName) || "".equals(slaveName)) {
             LogRecord rec = new LogRecord(Level.WARNING, "Agent '" + slaveName
                                           + "' (using VM '" + vmName
                                           + "') appears to be misconfigured.");
             LOGGER.log(rec);
-            return Boolean.FALSE;
+            return true;
         }
+        return false;
+    }
 
-        return Boolean.TRUE;
+    public Boolean markVMOnline(String slaveName, String vmName) {
+        try {
+            return tryAdmitVM(slaveName, vmName) == Admission.ADMITTED;
+        } catch (AbortException e) {
+            return Boolean.FALSE;
+        }
     }
 
-    public synchronized Boolean markVMOnline(String slaveName, String vmName) {
-        ensureLists();
+    /**
+     * Marks the virtual machine online if the hypervisor has capacity for it.
+     *
+     * @param slaveName the agent to launch
+     * @param vmName the virtual machine of the agent
+     * @return {@link Admission#ADMITTED} if the virtual machine has been marked online, otherwise
+     *         whether no agent or only this one does not fit right now
+     * @throws AbortException if the virtual machine can never be marked online as configured
+     */
+    Admission tryAdmitVM(String slaveName, String vmName) throws AbortException {
+        OnlineAgents online = getOnlineAgents();
 
         // If the combination is already in the list, it's good.
-        if (currentOnline.containsKey(slaveName) && currentOnline.get(slaveName).equals(vmName)) {
-            return Boolean.TRUE;
+        if (online.isOnline(slaveName, vmName)) {
+            return Admission.ADMITTED;
         }
 
-        if (!canMarkVMOnline(slaveName, vmName)) {
-            return Boolean.FALSE;
+        if (isMisconfigured(slaveName, vmName)) {
+            throw new AbortException("Agent '" + slaveName + "' (using VM '" + vmName + "') appears to be misconfigured.");
+        }
+
+        // takes the slot, or fails if the capacity is used up or the agent or VM are online already
+        while (!online.tryAdd(slaveName, vmName, maxOnlineSlaves)) {
+            if (online.isVirtualMachineInUse(vmName)) {
+                throw new AbortException("Virtual machine '" + vmName + "' is in use by another agent.");
+            }
+            if (online.isAgentOnline(slaveName)) {
+                throw new AbortException("Agent '" + slaveName + "' is online with another virtual machine.");
+            }
+            if (maxOnlineSlaves > 0 && online.size() >= maxOnlineSlaves) {
+                return Admission.AT_CAPACITY;
+            }
+            // the other agent went offline meanwhile, try again
         }
 
-        currentOnline.put(slaveName, vmName);
-        currentOnlineSlaveCount++;
+        if (isResourceAdmission()) {
+            Admission admission = getHostCapacity().tryAdmit(vmName, memoryOvercommitRatio, cpuOvercommitRatio);
+            if (admission != Admission.ADMITTED) {
+                online.remove(slaveName);
+                if (admission == Admission.TOO_LARGE) {
+                    throw new AbortException("Virtual machine '" + vmName + "' needs more memory or CPUs than"
+                                             + " hypervisor \"" + getHypervisorDescription() + "\" provides.");
+                }
+                return admission;
+            }
+        }
 
-        return Boolean.TRUE;
+        return Admission.ADMITTED;
     }
 
-    public synchronized void markVMOffline(String slaveName, String vmName)
+    public void markVMOffline(String slaveName, String vmName)
             throws VirtException {
-        ensureLists();
-
-        if (currentOnline.remove(slaveName) != null) {
-            currentOnlineSlaveCount--;
+        getOnlineAgents().remove(slaveName);
+        HostCapacity capacity = hostCapacity;
+        if (capacity != null) {
+            capacity.release(vmName);
+        }
+        AdmissionQueue queue = admissionQueue;
+        if (queue != null) {
+            queue.wakeUp();
         }
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        if (connection != null) {
-            connection.close();
+    /**
+     * Releases the connections and threads of this hypervisor once it has been
+     * removed from the configuration or replaced by another instance, see
+     * {@link HypervisorRegistry}. Launches waiting for a free slot fail,
+     * operations still running on it complete and later ones work without
+     * keeping connections.
+     */
+    void close() {
+        ConnectionPool pool;
+        ExecutorService executor;
+        AdmissionQueue queue;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pool = connectionPool;
+            executor = resetExecutor;
+            queue = admissionQueue;
+        }
+        if (queue != null) {
+            // launches waiting for a slot here would never be woken up
+            queue.close();
+        }
+        LOGGER.log(Level.INFO, "Closing removed hypervisor {0}", hypervisorHost);
+        if (pool != null) {
+            pool.close();
+        }
+        closeEventConnection();
+        if (executor != null) {
+            executor.shutdown();
         }
-        super.finalize();
     }
 
     @Override
@@ -423,7 +1020,12 @@ public class Hypervisor extends Cloud {
     }
 
     public String getHypervisorURI() {
-        return createBuilder().constructHypervisorURI();
+        String u = uri;
+        if (u == null) {
+            u = createBuilder().constructHypervisorURI();
+            uri = u;
+        }
+        return u;
     }
 
     @Extension
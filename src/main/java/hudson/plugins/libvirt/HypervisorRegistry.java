@@ -0,0 +1,160 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Computer;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.Cloud;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Indexes the configured hypervisors by description, URI and host.
+ *
+ * Lookups only read the index. It is rebuilt whenever the clouds may have
+ * changed: every change of {@link Jenkins#clouds}, be it through the UI,
+ * Configuration as Code or a script, saves the global configuration, and a
+ * reload loads it again.
+ *
+ * Hypervisors which are not configured any more are closed when the index is
+ * rebuilt.
+ */
+public final class HypervisorRegistry {
+
+    private static final class Index {
+        private final List<Hypervisor> hypervisors;
+        private final Map<String, Hypervisor> byDescription = new HashMap<>();
+        private final Map<String, Hypervisor> byUri = new HashMap<>();
+        private final Map<String, Hypervisor> byHost = new HashMap<>();
+
+        private Index(List<Hypervisor> hypervisors) {
+            this.hypervisors = Collections.unmodifiableList(hypervisors);
+            for (Hypervisor hypervisor : hypervisors) {
+                // first one wins, like the linear scans this replaces
+                byDescription.putIfAbsent(hypervisor.getHypervisorDescription(), hypervisor);
+                byUri.putIfAbsent(hypervisor.getHypervisorURI(), hypervisor);
+                byHost.putIfAbsent(hypervisor.getHypervisorHost(), hypervisor);
+            }
+        }
+
+    }
+
+    private static volatile Index index;
+
+    private HypervisorRegistry() {
+    }
+
+    /**
+     * @return all configured hypervisors
+     */
+    public static List<Hypervisor> getHypervisors() {
+        return getIndex().hypervisors;
+    }
+
+    /**
+     * @param description the description as returned by {@link Hypervisor#getHypervisorDescription()}
+     * @return the hypervisor, or null if there is none
+     */
+    public static Hypervisor getByDescription(String description) {
+        return lookup(description, i -> i.byDescription);
+    }
+
+    /**
+     * @param uri the URI as returned by {@link Hypervisor#getHypervisorURI()}
+     * @return the hypervisor, or null if there is none
+     */
+    public static Hypervisor getByURI(String uri) {
+        return lookup(uri, i -> i.byUri);
+    }
+
+    /**
+     * @param host the host name as returned by {@link Hypervisor#getHypervisorHost()}
+     * @return the hypervisor, or null if there is none
+     */
+    public static Hypervisor getByHost(String host) {
+        return lookup(host, i -> i.byHost);
+    }
+
+    /**
+     * Rebuilds the index from the configured clouds.
+     */
+    public static void refresh() {
+        rebuild();
+    }
+
+    private static Hypervisor lookup(String key, Function<Index, Map<String, Hypervisor>> map) {
+        if (key == null) {
+            return null;
+        }
+        return map.apply(getIndex()).get(key);
+    }
+
+    private static Index getIndex() {
+        Index current = index;
+        return current != null ? current : rebuild();
+    }
+
+    private static synchronized Index rebuild() {
+        Index current = index;
+        List<Hypervisor> hypervisors = new ArrayList<>();
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (cloud instanceof Hypervisor) {
+                hypervisors.add((Hypervisor) cloud);
+            }
+        }
+        if (current != null) {
+            for (Hypervisor hypervisor : current.hypervisors) {
+                if (!containsInstance(hypervisors, hypervisor)) {
+                    // closing talks to the host, this may be called with the queue locked
+                    Computer.threadPoolForRemoting.submit(hypervisor::close);
+                }
+            }
+        }
+        current = new Index(hypervisors);
+        index = current;
+        return current;
+    }
+
+    private static boolean containsInstance(List<Hypervisor> hypervisors, Hypervisor hypervisor) {
+        for (Hypervisor h : hypervisors) {
+            if (h == hypervisor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Refreshes the index whenever the global configuration is saved, which
+     * {@link Jenkins#clouds} does on every change.
+     */
+    @Extension
+    public static final class ConfigurationListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Jenkins) {
+                refresh();
+            }
+        }
+    }
+
+    /**
+     * Refreshes the index once the configuration has been loaded or reloaded.
+     */
+    @Extension
+    public static final class ReloadListener extends ItemListener {
+        @Override
+        public void onLoaded() {
+            refresh();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package hudson.plugins.libvirt;
+
+import hudson.AbortException;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.SlaveComputer;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Waits for the hypervisor to admit a virtual machine, starts it, waits for
+ * it to boot and connects the agent, retrying if necessary.
+ *
+ * The sequence runs on the calling thread, since
+ * {@link ComputerLauncher#launch} has to return only once the agent is
+ * connected or has failed to.
+ */
+final class LaunchSequence {
+
+    private static final Logger LOGGER = Logger.getLogger(LaunchSequence.class.getName());
+
+    private static final long PROBE_INTERVAL_MS = 1000;
+
+    private final ComputerLauncher delegate;
+    private final VirtualMachine virtualMachine;
+    private final SlaveComputer slaveComputer;
+    private final TaskListener taskListener;
+    private final int waitingTimeSecs;
+    private final int timesToRetryOnFailure;
+    private final List<ReadinessProbe> probes;
+    private final BootTimeHistory history;
+
+    private long bootStart;
+    private long deadline;
+    private boolean booted;
+    /**
+     * When a readiness probe first succeeded, 0 if none did.
+     */
+    private long readyAt;
+
+    LaunchSequence(ComputerLauncher delegate, VirtualMachine virtualMachine, SlaveComputer slaveComputer,
+                   TaskListener taskListener, int waitingTimeSecs, int timesToRetryOnFailure) {
+        this.delegate = delegate;
+        this.virtualMachine = virtualMachine;
+        this.slaveComputer = slaveComputer;
+        this.taskListener = taskListener;
+        this.waitingTimeSecs = waitingTimeSecs;
+        this.timesToRetryOnFailure = timesToRetryOnFailure;
+        this.probes = getReadinessProbes(slaveComputer);
+        this.history = BootTimeHistory.forNode(slaveComputer.getName());
+    }
+
+    VirtualMachine getVirtualMachine() {
+        return virtualMachine;
+    }
+
+    /**
+     * Runs the sequence.
+     *
+     * @return whether the agent came online
+     * @throws IOException if the virtual machine could not be admitted or started
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean start() throws IOException, InterruptedException {
+        admit();
+        try {
+            return boot();
+        } catch (IOException e) {
+            throw fail(e);
+        } catch (RuntimeException e) {
+            throw fail(e);
+        }
+    }
+
+    /**
+     * Connects the agent to a virtual machine which is already up, e.g. after
+     * reverting it to a snapshot of a running guest.
+     *
+     * @return whether the agent came online
+     * @throws IOException if the virtual machine could not be admitted
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean reconnect() throws IOException, InterruptedException {
+        admit();
+        try {
+            bootStart = System.currentTimeMillis();
+            deadline = bootStart + TimeUnit.SECONDS.toMillis((long) waitingTimeSecs * (timesToRetryOnFailure + 1));
+            return connect();
+        } catch (RuntimeException e) {
+            throw fail(e);
+        }
+    }
+
+    /**
+     * Marks the virtual machine online at its hypervisor, waiting in line if the
+     * hypervisor is at capacity.
+     */
+    private void admit() throws IOException, InterruptedException {
+        Node node = slaveComputer.getNode();
+        if (node == null) {
+            throw new IOException("Agent " + slaveComputer.getName() + " has been removed");
+        }
+        Hypervisor hypervisor = virtualMachine.getHypervisor();
+        boolean admitted;
+        try {
+            admitted = hypervisor.admitVM(node, virtualMachine.getName(), taskListener).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AbortException) {
+                // the virtual machine can never be admitted as configured
+                taskListener.error(cause.getMessage());
+                throw (AbortException) cause;
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        if (!admitted) {
+            String message = "Capacity threshold  (" + hypervisor.getMaxOnlineSlaves()
+                             + ") or resource limit reached at hypervisor \""
+                             + hypervisor.getHypervisorDescription()
+                             + "\" for " + hypervisor.getAdmissionTimeoutSeconds()
+                             + " seconds, agent commissioning delayed.";
+            taskListener.error(message);
+            throw new AbortException(message);
+        }
+    }
+
+    private boolean boot() throws IOException, InterruptedException {
+        bootStart = System.currentTimeMillis();
+        // With a learned boot time, attempts start earlier and are spaced closer,
+        // but never take longer than the configured waits would have in total.
+        deadline = bootStart + TimeUnit.SECONDS.toMillis((long) waitingTimeSecs * (timesToRetryOnFailure + 1));
+        if (ComputerUtils.resume(virtualMachine, taskListener)) {
+            // a suspended machine has booted before, it only needs to catch up with the clock
+            taskListener.getLogger().println("Resumed suspended virtual machine, connecting right away.");
+            return connect();
+        }
+        boolean restore = ComputerUtils.hasManagedSaveImage(virtualMachine);
+        booted = ComputerUtils.start(virtualMachine, taskListener);
+        if (booted && restore) {
+            // a restore takes as long as reading the memory image, not like a boot
+            booted = false;
+            if (probes.isEmpty()) {
+                taskListener.getLogger().println("Restored from managed save image, connecting right away.");
+                return connect();
+            }
+        }
+
+        if (probes.isEmpty()) {
+            long wait = TimeUnit.SECONDS.toMillis(waitingTimeSecs);
+            if (history.isTrained()) {
+                wait = Math.min(wait, history.getFirstAttemptMillis());
+                taskListener.getLogger().println("Waiting for " + TimeUnit.MILLISECONDS.toSeconds(wait)
+                                                 + "s, just below the fast boot times of this agent...");
+            } else {
+                taskListener.getLogger().println("Waiting for " + waitingTimeSecs + "s to let it fully boot up...");
+            }
+            Thread.sleep(wait);
+        } else {
+            taskListener.getLogger().println("Waiting up to " + waitingTimeSecs + "s for it to become ready...");
+            probe(bootStart + TimeUnit.SECONDS.toMillis(waitingTimeSecs));
+        }
+        return connect();
+    }
+
+    /**
+     * Polls the readiness probes of the node until one succeeds, but at most for the startup period.
+     */
+    private void probe(long readyDeadline) throws IOException, InterruptedException {
+        while (true) {
+            for (ReadinessProbe probe : probes) {
+                if (probe.isReady(virtualMachine, taskListener)) {
+                    readyAt = System.currentTimeMillis();
+                    taskListener.getLogger().println("Ready after " + (readyAt - bootStart)
+                                                     + "ms (" + probe + ").");
+                    return;
+                }
+            }
+            long remaining = readyDeadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                taskListener.getLogger().println("Not reported ready within " + waitingTimeSecs
+                                                 + "s, connecting anyway.");
+                return;
+            }
+            Thread.sleep(Math.min(PROBE_INTERVAL_MS, remaining));
+        }
+    }
+
+    private boolean connect() throws InterruptedException {
+        int retries = -1;
+        while (true) {
+            retries++;
+
+            taskListener.getLogger().println("Connecting agent client.");
+            long attemptStart = System.currentTimeMillis();
+
+            // This call doesn't seem to actually throw anything, but we'll catch IOException just in case
+            try {
+                delegate.launch(slaveComputer, taskListener);
+            } catch (IOException e) {
+                taskListener.getLogger().println("unexpectedly caught exception when delegating launch of agent: " + e.getMessage());
+            }
+
+            if (slaveComputer.isOnline()) {
+                if (booted) {
+                    // the time it took to become ready, not how long connecting took or the waits before
+                    history.record((readyAt > 0 ? readyAt : attemptStart) - bootStart);
+                }
+                return true;
+            }
+
+            long retryWait;
+            if (history.isTrained()) {
+                retryWait = history.getRetryIntervalMillis(TimeUnit.SECONDS.toMillis(waitingTimeSecs));
+                if (System.currentTimeMillis() + retryWait > deadline) {
+                    taskListener.getLogger().println("Maximum startup time reached. Failed to start agent client.");
+                    return false;
+                }
+            } else if (retries >= timesToRetryOnFailure) {
+                taskListener.getLogger().println("Maximum retries reached. Failed to start agent client.");
+                return false;
+            } else {
+                retryWait = TimeUnit.SECONDS.toMillis(waitingTimeSecs);
+            }
+
+            taskListener.getLogger().println("Not up yet, waiting for " + TimeUnit.MILLISECONDS.toSeconds(retryWait)
+                                             + "s more (" + retries + " retries)");
+            Thread.sleep(retryWait);
+        }
+    }
+
+    private <E extends Exception> E fail(E e) {
+        taskListener.fatalError(e.getMessage(), e);
+
+        LogRecord rec = new LogRecord(Level.SEVERE, "Error while launching {0} on Hypervisor {1}.");
+        rec.setParameters(new Object[]{virtualMachine.getName(), virtualMachine.getHypervisor().getHypervisorURI()});
+        rec.setThrown(e);
+        LOGGER.log(rec);
+        return e;
+    }
+
+    private static List<ReadinessProbe> getReadinessProbes(SlaveComputer slaveComputer) {
+        Node node = slaveComputer.getNode();
+        if (node instanceof VirtualMachineSlave) {
+            return ((VirtualMachineSlave) node).getReadinessProbes();
+        }
+        return Collections.emptyList();
+    }
+}
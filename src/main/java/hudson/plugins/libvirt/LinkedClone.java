@@ -0,0 +1,192 @@
+package hudson.plugins.libvirt;
+
+import hudson.plugins.libvirt.lib.DomainState;
+import hudson.plugins.libvirt.lib.IConnect;
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.IStorageVol;
+import hudson.plugins.libvirt.lib.VirtException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Defines and removes linked clones of template domains.
+ *
+ * A linked clone is a copy of the definition of the template whose disks
+ * are copy-on-write overlays on top of the disks of the template. Creating
+ * one only takes as long as creating a few empty files, but the template
+ * must not be started while it has clones.
+ */
+final class LinkedClone {
+
+    private static final Logger LOGGER = Logger.getLogger(LinkedClone.class.getName());
+
+    private LinkedClone() {
+    }
+
+    /**
+     * Defines a linked clone of a template domain.
+     *
+     * @param hypervisor the hypervisor of the template
+     * @param templateName the name of the template domain
+     * @param cloneName the name of the new domain
+     * @return the paths of the overlays created for the disks of the clone
+     * @throws VirtException if the clone could not be defined, nothing is left behind then
+     */
+    static List<String> create(final Hypervisor hypervisor, final String templateName, final String cloneName)
+            throws VirtException {
+        return hypervisor.getConnectionPool().execute(con -> {
+            IDomain template = con.domainLookupByName(templateName);
+            if (template.getState() != DomainState.SHUTOFF) {
+                throw new VirtException("Template " + templateName + " must be shut off to be cloned");
+            }
+
+            Document xml = parse(template.getXMLDesc());
+            List<String> overlays = new ArrayList<>();
+            try {
+                rewrite(con, xml, cloneName, overlays);
+                con.domainDefineXML(serialize(xml));
+            } catch (VirtException | RuntimeException e) {
+                deleteVolumes(con, overlays);
+                throw e;
+            }
+            LOGGER.log(Level.INFO, "Defined linked clone {0} of {1}", new Object[]{cloneName, templateName});
+            return overlays;
+        });
+    }
+
+    /**
+     * Destroys and undefines a linked clone and deletes its overlays.
+     *
+     * @param hypervisor the hypervisor of the clone
+     * @param cloneName the name of the clone
+     * @param overlays the paths of the overlays of the clone
+     * @throws VirtException if the clone could not be removed
+     */
+    static void delete(final Hypervisor hypervisor, final String cloneName, final List<String> overlays)
+            throws VirtException {
+        hypervisor.getConnectionPool().execute(con -> {
+            IDomain clone = con.domainLookupByName(cloneName);
+            if (clone.getState() != DomainState.SHUTOFF) {
+                clone.destroy();
+            }
+            clone.undefine();
+            deleteVolumes(con, overlays);
+            return null;
+        });
+        hypervisor.forgetDomain(cloneName);
+        LOGGER.log(Level.INFO, "Deleted linked clone {0}", cloneName);
+    }
+
+    /**
+     * Renames the domain, drops its identity and puts an overlay on top of every file backed disk.
+     */
+    private static void rewrite(IConnect con, Document xml, String cloneName, List<String> overlays)
+            throws VirtException {
+        Element domain = xml.getDocumentElement();
+        for (Element name : children(domain, "name")) {
+            name.setTextContent(cloneName);
+        }
+        // libvirt generates a new UUID and new MAC addresses
+        for (Element uuid : children(domain, "uuid")) {
+            domain.removeChild(uuid);
+        }
+        for (Element devices : children(domain, "devices")) {
+            for (Element iface : children(devices, "interface")) {
+                for (Element mac : children(iface, "mac")) {
+                    iface.removeChild(mac);
+                }
+            }
+            for (Element disk : children(devices, "disk")) {
+                if (!"disk".equals(disk.getAttribute("device"))) {
+                    // CD-ROMs and floppies are shared read-only
+                    continue;
+                }
+                List<Element> sources = children(disk, "source");
+                if (sources.isEmpty() || !sources.get(0).hasAttribute("file")) {
+                    throw new VirtException("Cannot clone disk of " + cloneName + " which is not backed by a file");
+                }
+                Element source = sources.get(0);
+                IStorageVol base = con.storageVolLookupByPath(source.getAttribute("file"));
+                String target = children(disk, "target").isEmpty()
+                        ? String.valueOf(overlays.size())
+                        : children(disk, "target").get(0).getAttribute("dev");
+                IStorageVol overlay = base.getPool().createOverlay(cloneName + "-" + target + ".qcow2", base);
+                overlays.add(overlay.getPath());
+
+                source.setAttribute("file", overlay.getPath());
+                for (Element driver : children(disk, "driver")) {
+                    driver.setAttribute("type", "qcow2");
+                }
+                for (Element backingStore : children(disk, "backingStore")) {
+                    disk.removeChild(backingStore);
+                }
+            }
+        }
+    }
+
+    private static void deleteVolumes(IConnect con, List<String> paths) {
+        for (String path : paths) {
+            try {
+                con.storageVolLookupByPath(path).delete();
+            } catch (VirtException e) {
+                LOGGER.log(Level.WARNING, "Failed to delete overlay " + path, e);
+            }
+        }
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        List<Element> elements = new ArrayList<>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node instanceof Element && name.equals(node.getNodeName())) {
+                elements.add((Element) node);
+            }
+        }
+        return elements;
+    }
+
+    private static Document parse(String xml) throws VirtException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            throw new VirtException("Cannot parse domain description", e);
+        }
+    }
+
+    private static String serialize(Document xml) throws VirtException {
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            StringWriter writer = new StringWriter();
+            transformer.transform(new DOMSource(xml), new StreamResult(writer));
+            return writer.toString();
+        } catch (TransformerException e) {
+            throw new VirtException("Cannot write domain description", e);
+        }
+    }
+}
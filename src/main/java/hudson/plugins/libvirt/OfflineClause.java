@@ -24,8 +24,23 @@ public abstract class OfflineClause {
      * Node is taken offline to revert to a snapshot.
      */
     public static class RevertSnapshot extends OfflineCause.ByCLI {
+        private final boolean live;
+
         public RevertSnapshot(String message) {
+            this(message, false);
+        }
+
+        /**
+         * @param message the reason
+         * @param live whether the snapshot holds a running guest, so the VM need not be stopped first
+         */
+        public RevertSnapshot(String message, boolean live) {
             super(message);
+            this.live = live;
+        }
+
+        public boolean isLive() {
+            return live;
         }
     }
 
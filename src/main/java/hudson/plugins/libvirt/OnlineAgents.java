@@ -0,0 +1,96 @@
+package hudson.plugins.libvirt;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The agents of a hypervisor which are online, and their virtual machines.
+ *
+ * Agents and virtual machines are indexed both ways so that either can be
+ * checked in constant time, and the number of online agents is kept in an
+ * atomic counter. Nothing here takes a lock, so admitting agents never waits
+ * for anything else the hypervisor does.
+ */
+final class OnlineAgents {
+
+    private final Map<String, String> vmByAgent = new ConcurrentHashMap<>();
+    private final Map<String, String> agentByVm = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @return the number of online agents
+     */
+    int size() {
+        return count.get();
+    }
+
+    /**
+     * @param agentName the agent
+     * @param vmName the virtual machine
+     * @return whether the agent is online with this virtual machine
+     */
+    boolean isOnline(String agentName, String vmName) {
+        return vmName.equals(vmByAgent.get(agentName));
+    }
+
+    /**
+     * @param agentName the agent
+     * @return whether the agent is online
+     */
+    boolean isAgentOnline(String agentName) {
+        return vmByAgent.containsKey(agentName);
+    }
+
+    /**
+     * @param vmName the virtual machine
+     * @return whether an online agent uses the virtual machine
+     */
+    boolean isVirtualMachineInUse(String vmName) {
+        return agentByVm.containsKey(vmName);
+    }
+
+    /**
+     * Marks the agent online, unless the limit is reached, the agent is online
+     * already or another agent uses the virtual machine.
+     *
+     * @param agentName the agent
+     * @param vmName the virtual machine of the agent
+     * @param max the maximum number of online agents, 0 for no limit
+     * @return whether the agent was marked online
+     */
+    boolean tryAdd(String agentName, String vmName, int max) {
+        int current;
+        do {
+            current = count.get();
+            if (max > 0 && current >= max) {
+                return false;
+            }
+        } while (!count.compareAndSet(current, current + 1));
+
+        if (agentByVm.putIfAbsent(vmName, agentName) != null) {
+            count.decrementAndGet();
+            return false;
+        }
+        if (vmByAgent.putIfAbsent(agentName, vmName) != null) {
+            agentByVm.remove(vmName, agentName);
+            count.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param agentName the agent
+     * @return whether the agent was online
+     */
+    boolean remove(String agentName) {
+        String vmName = vmByAgent.remove(agentName);
+        if (vmName == null) {
+            return false;
+        }
+        agentByVm.remove(vmName, agentName);
+        count.decrementAndGet();
+        return true;
+    }
+}
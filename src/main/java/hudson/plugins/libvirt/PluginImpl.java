@@ -17,21 +17,17 @@
  */
 package hudson.plugins.libvirt;
 
-import com.google.common.collect.Collections2;
-import com.google.common.collect.Iterables;
-
 import hudson.Plugin;
-import hudson.slaves.Cloud;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 
 import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -90,20 +86,16 @@ public class PluginImpl extends Plugin {
         LOGGER.log(Level.FINE, "Stopping libvirt-slave plugin.");
     }
 
-    public synchronized Collection<Hypervisor> getServers() {
-        Jenkins jenkins = Jenkins.get();
-        Collection<? extends Cloud> clouds = jenkins.clouds;
-        Collection<Hypervisor> libvirtClouds = (Collection<Hypervisor>) Collections2.filter(
-                clouds, (@Nullable final Cloud input) -> input instanceof Hypervisor
-        );
-
-        return libvirtClouds;
+    public Collection<Hypervisor> getServers() {
+        return HypervisorRegistry.getHypervisors();
     }
 
     public Hypervisor getServer(final String host) {
-        return Iterables.find(getServers(),
-                (@Nullable final Hypervisor input) -> null != input && host.equals(input.getHypervisorHost())
-        );
+        Hypervisor hypervisor = HypervisorRegistry.getByHost(host);
+        if (hypervisor == null) {
+            throw new NoSuchElementException("No hypervisor on host " + host);
+        }
+        return hypervisor;
     }
 
     @POST
@@ -152,14 +144,9 @@ public class PluginImpl extends Plugin {
             return;
         }
 
-        for (Cloud cloud : Jenkins.get().clouds) {
-            if (cloud instanceof Hypervisor) {
-                Hypervisor hypervisor = (Hypervisor) cloud;
-                if (value != null && value.equals(hypervisor.getHypervisorDescription())) {
-                    virtualMachines = hypervisor.getVirtualMachines();
-                    break;
-                }
-            }
+        Hypervisor hypervisor = HypervisorRegistry.getByDescription(value);
+        if (hypervisor != null) {
+            virtualMachines = hypervisor.getVirtualMachines();
         }
         if (virtualMachines != null) {
             for (VirtualMachine vm : virtualMachines) {
@@ -181,15 +168,11 @@ public class PluginImpl extends Plugin {
         }
 
         m.add(new ListBoxModel.Option("", ""));
-        for (Cloud cloud : Jenkins.get().clouds) {
-            if (cloud instanceof Hypervisor) {
-                Hypervisor hypHandle = (Hypervisor) cloud;
-                if (hypervisor != null && hypervisor.equals(hypHandle.getHypervisorURI())) {
-                    String[] ss = hypHandle.getSnapshots(vm);
-                    for (String sshot : ss) {
-                        m.add(new ListBoxModel.Option(sshot, sshot));
-                    }
-                }
+        Hypervisor hypHandle = HypervisorRegistry.getByURI(hypervisor);
+        if (hypHandle != null) {
+            String[] ss = hypHandle.getSnapshots(vm);
+            for (String sshot : ss) {
+                m.add(new ListBoxModel.Option(sshot, sshot));
             }
         }
         m.writeTo(req, rsp);
@@ -0,0 +1,43 @@
+package hudson.plugins.libvirt;
+
+import hudson.DescriptorExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Tells whether a freshly started virtual machine is ready for the agent
+ * connection, so that the launcher does not have to wait for the whole
+ * startup period.
+ *
+ * A probe has to observe the guest itself, see {@link TcpPortReadinessProbe}.
+ * The state of the domain tells nothing, libvirt reports it as running right
+ * after it has been started.
+ */
+public abstract class ReadinessProbe extends AbstractDescribableImpl<ReadinessProbe> implements ExtensionPoint {
+
+    /**
+     * Checks once whether the guest is ready. Implementations should return
+     * quickly, the launcher calls them repeatedly until one succeeds or the
+     * startup period is over.
+     *
+     * @param virtualMachine the virtual machine being launched
+     * @param listener the launch log
+     * @return whether the guest is ready
+     * @throws InterruptedException if interrupted while probing
+     */
+    public abstract boolean isReady(VirtualMachine virtualMachine, TaskListener listener) throws InterruptedException;
+
+    /**
+     * Descriptor of {@link ReadinessProbe}s.
+     */
+    public abstract static class ReadinessProbeDescriptor extends Descriptor<ReadinessProbe> {
+    }
+
+    public static DescriptorExtensionList<ReadinessProbe, ReadinessProbeDescriptor> all() {
+        return Jenkins.get().getDescriptorList(ReadinessProbe.class);
+    }
+}
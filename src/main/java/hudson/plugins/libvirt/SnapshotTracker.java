@@ -0,0 +1,74 @@
+package hudson.plugins.libvirt;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers, per virtual machine of a hypervisor, the snapshot it was last
+ * reverted to and whether anything has run on it since, so that reverting
+ * it to the same snapshot again can be skipped.
+ *
+ * Only what this plugin does to a virtual machine is tracked here. Before
+ * trusting a clean state, {@link #isClean(VirtualMachine, String)} asks
+ * libvirt for the current snapshot of the domain, which catches reverts done
+ * outside of Jenkins.
+ */
+final class SnapshotTracker {
+
+    private static final class State {
+        private final String snapshotName;
+        private final boolean dirty;
+
+        private State(String snapshotName, boolean dirty) {
+            this.snapshotName = snapshotName;
+            this.dirty = dirty;
+        }
+    }
+
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+
+    /**
+     * @param vmName the virtual machine
+     * @param snapshotName the snapshot it has just been reverted to
+     */
+    void applied(String vmName, String snapshotName) {
+        states.put(vmName, new State(snapshotName, false));
+    }
+
+    /**
+     * @param vmName a virtual machine which has been used, or changed in an untracked way
+     */
+    void dirty(String vmName) {
+        states.computeIfPresent(vmName, (name, state) -> state.dirty ? state : new State(state.snapshotName, true));
+    }
+
+    /**
+     * Like {@link #isClean(VirtualMachine, String)}, but without asking the hypervisor.
+     *
+     * @param vmName the virtual machine
+     * @param snapshotName the snapshot it should be in
+     * @return whether the virtual machine was last reverted to the snapshot and not used since
+     */
+    boolean isTrackedClean(String vmName, String snapshotName) {
+        State state = states.get(vmName);
+        return state != null && !state.dirty && snapshotName.equals(state.snapshotName);
+    }
+
+    /**
+     * @param virtualMachine the virtual machine
+     * @param snapshotName the snapshot it should be in
+     * @return whether the virtual machine has been reverted to the snapshot and not used since
+     */
+    boolean isClean(VirtualMachine virtualMachine, String snapshotName) {
+        if (!isTrackedClean(virtualMachine.getName(), snapshotName)) {
+            return false;
+        }
+        // null if the hypervisor does not know, then the tracked state has to do
+        String current = ComputerUtils.getCurrentSnapshotName(virtualMachine);
+        if (current != null && !current.equals(snapshotName)) {
+            dirty(virtualMachine.getName());
+            return false;
+        }
+        return true;
+    }
+}
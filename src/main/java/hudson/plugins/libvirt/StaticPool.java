@@ -0,0 +1,144 @@
+package hudson.plugins.libvirt;
+
+import hudson.AbortException;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.plugins.libvirt.lib.DomainState;
+import hudson.slaves.NodeProvisioner;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lets the {@link NodeProvisioner} launch the predefined agents of a hypervisor,
+ * so they are started as the load of their labels demands instead of only when
+ * their retention strategy gets round to it.
+ *
+ * The planned node of such an agent is the agent itself; adding it to Jenkins
+ * once it is online changes nothing.
+ *
+ * Both run with the queue locked, so the warmth of the agents is judged from
+ * the domain states the hypervisor has cached and from managed save images
+ * looked up in the background, never by asking libvirt.
+ */
+final class StaticPool {
+
+    private static final Logger LOGGER = Logger.getLogger(StaticPool.class.getName());
+
+    private final Hypervisor hypervisor;
+
+    /**
+     * Whether shut off virtual machines have a managed save image, by name. An
+     * entry is dropped once the virtual machine is seen in another state, since
+     * it can only gain or lose its image by running.
+     */
+    private final Map<String, Boolean> managedSaveImages = new ConcurrentHashMap<>();
+
+    StaticPool(Hypervisor hypervisor) {
+        this.hypervisor = hypervisor;
+    }
+
+    /**
+     * @param label the label jobs are waiting for
+     * @return whether there is an offline agent for the label
+     */
+    boolean canProvision(Label label) {
+        for (VirtualMachineSlaveComputer computer : hypervisor.getOfflineComputers()) {
+            if (matches(computer, label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Launches offline agents for the label, the warmest first since they come up fastest.
+     *
+     * @param label the label jobs are waiting for
+     * @param excessWorkload the number of executors needed
+     * @param capacity the maximum number of agents to launch
+     * @return the launching agents
+     */
+    List<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload, int capacity) {
+        List<NodeProvisioner.PlannedNode> planned = new ArrayList<>();
+        int excess = excessWorkload;
+        for (final VirtualMachineSlaveComputer computer : getCandidates(label)) {
+            if (excess <= 0 || planned.size() >= capacity) {
+                break;
+            }
+            final Node node = computer.getNode();
+            if (node == null) {
+                continue;
+            }
+            // the computer reports the launch as connecting right away, so the next round does not pick it again
+            final Future<?> connect = computer.connect(false);
+            planned.add(new NodeProvisioner.PlannedNode(node.getDisplayName(),
+                    Computer.threadPoolForRemoting.submit(() -> {
+                        connect.get();
+                        if (computer.isOffline()) {
+                            throw new AbortException("Failed to launch " + node.getDisplayName());
+                        }
+                        return node;
+                    }),
+                    node.getNumExecutors()));
+            excess -= node.getNumExecutors();
+        }
+        if (!planned.isEmpty()) {
+            LOGGER.log(Level.INFO, "Launching {0} predefined agent(s) on {1} for {2}",
+                       new Object[]{planned.size(), hypervisor.getHypervisorHost(), label});
+        }
+        return planned;
+    }
+
+    private List<VirtualMachineSlaveComputer> getCandidates(Label label) {
+        final Map<VirtualMachineSlaveComputer, Warmth> warmth = new HashMap<>();
+        for (VirtualMachineSlaveComputer computer : hypervisor.getOfflineComputers()) {
+            if (matches(computer, label)) {
+                warmth.put(computer, getWarmth(computer));
+            }
+        }
+        List<VirtualMachineSlaveComputer> candidates = new ArrayList<>(warmth.keySet());
+        candidates.sort(Comparator.comparing((VirtualMachineSlaveComputer c) -> warmth.get(c)).reversed());
+        return candidates;
+    }
+
+    private static boolean matches(VirtualMachineSlaveComputer computer, Label label) {
+        Node node = computer.getNode();
+        if (node == null) {
+            return false;
+        }
+        return label == null ? node.getMode() == Node.Mode.NORMAL : label.contains(node);
+    }
+
+    private Warmth getWarmth(VirtualMachineSlaveComputer computer) {
+        VirtualMachineLauncher launcher = (VirtualMachineLauncher) computer.getLauncher();
+        String vmName = launcher.getVirtualMachineName();
+        DomainState state = hypervisor.peekDomainState(vmName);
+        if (state != DomainState.SHUTOFF) {
+            managedSaveImages.remove(vmName);
+            return Warmth.of(computer, state, false);
+        }
+        Boolean managedSave = managedSaveImages.get(vmName);
+        if (managedSave == null) {
+            // counts as stopped until known
+            managedSave = Boolean.FALSE;
+            checkManagedSaveImage(launcher.getVirtualMachine());
+        }
+        return Warmth.of(computer, state, managedSave);
+    }
+
+    private void checkManagedSaveImage(final VirtualMachine virtualMachine) {
+        if (managedSaveImages.putIfAbsent(virtualMachine.getName(), Boolean.FALSE) == null) {
+            Computer.threadPoolForRemoting.submit(() -> managedSaveImages.replace(virtualMachine.getName(),
+                    ComputerUtils.hasManagedSaveImage(virtualMachine)));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package hudson.plugins.libvirt;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Considers the guest ready as soon as it accepts connections on a TCP port,
+ * e.g. the SSH port the agent is launched through.
+ */
+public class TcpPortReadinessProbe extends ReadinessProbe {
+
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+
+    private final String host;
+    private final int port;
+
+    @DataBoundConstructor
+    public TcpPortReadinessProbe(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public boolean isReady(VirtualMachine virtualMachine, TaskListener listener) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TCP port " + host + ":" + port;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends ReadinessProbeDescriptor {
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "TCP port is open";
+        }
+    }
+}
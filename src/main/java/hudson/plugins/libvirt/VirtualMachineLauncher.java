@@ -17,22 +17,20 @@
  */
 package hudson.plugins.libvirt;
 
+import hudson.model.Computer;
 import hudson.model.TaskListener;
 
 import hudson.model.Descriptor;
 import hudson.plugins.libvirt.lib.VirtException;
-import hudson.slaves.Cloud;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.DelegatingComputerLauncher;
 import hudson.slaves.SlaveComputer;
 
-import jenkins.model.Jenkins;
-
 import java.io.IOException;
 import java.io.ObjectStreamException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
-import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -47,7 +45,9 @@ public class VirtualMachineLauncher extends DelegatingComputerLauncher {
 
     @Deprecated
     private final ComputerLauncher delegate = null;
-    private transient VirtualMachine virtualMachine;
+    private transient volatile VirtualMachine virtualMachine;
+    private transient volatile long virtualMachineGeneration;
+    private transient CompletableFuture<Boolean> pendingLaunch;
     private final String hypervisorDescription;
     private final String virtualMachineName;
     private final int waitingTimeSecs;
@@ -98,18 +98,41 @@ public class VirtualMachineLauncher extends DelegatingComputerLauncher {
                 hypervisor = lookupHypervisorInstance();
                 LOGGER.log(Level.FINE, "Hypervisor found, searching for a matching virtual machine for \"{0}\"...", virtualMachineName);
 
-                for (VirtualMachine vm : hypervisor.getVirtualMachines()) {
-                    if (vm.getName().equals(virtualMachineName)) {
-                        virtualMachine = vm;
-                        break;
-                    }
-                }
+                long generation = hypervisor.getDomainDefinitionGeneration();
+                hypervisor.lookupDomain(virtualMachineName);
+                virtualMachine = new VirtualMachine(hypervisor, virtualMachineName);
+                virtualMachineGeneration = generation;
             } catch (VirtException e) {
                 LOGGER.log(Level.SEVERE, "no Hypervisor found, searching for a matching virtual machine for \"{0}\" {1}", new Object[]{virtualMachineName, e.getMessage()});
             }
         }
     }
 
+    /**
+     * The resolved virtual machine stays valid as long as the hypervisor has
+     * not been reconfigured and no domain has been defined, undefined or
+     * renamed on it since.
+     */
+    private boolean isCurrent(VirtualMachine vm) {
+        if (vm == null || virtualMachineGeneration < 0) {
+            return false;
+        }
+        try {
+            Hypervisor hypervisor = lookupHypervisorInstance();
+            return vm.getHypervisor() == hypervisor
+                    && virtualMachineGeneration == hypervisor.getDomainDefinitionGeneration();
+        } catch (VirtException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Forces the next {@link #getVirtualMachine()} to resolve the virtual machine again.
+     */
+    public void invalidateVirtualMachine() {
+        virtualMachineGeneration = -1;
+    }
+
     /**
      * @deprecated use {@link #getLauncher()}
      */
@@ -119,7 +142,9 @@ public class VirtualMachineLauncher extends DelegatingComputerLauncher {
     }
 
     public VirtualMachine getVirtualMachine() {
-        lookupVirtualMachineHandle();
+        if (!isCurrent(virtualMachine)) {
+            lookupVirtualMachineHandle();
+        }
         return virtualMachine;
     }
 
@@ -134,10 +159,9 @@ public class VirtualMachineLauncher extends DelegatingComputerLauncher {
 
     private Hypervisor lookupHypervisorInstance() throws VirtException {
         if (hypervisorDescription != null && virtualMachineName != null) {
-            for (Cloud cloud : Jenkins.get().clouds) {
-                if (cloud instanceof Hypervisor && ((Hypervisor) cloud).getHypervisorDescription().equals(hypervisorDescription)) {
-                    return (Hypervisor) cloud;
-                }
+            Hypervisor hypervisor = HypervisorRegistry.getByDescription(hypervisorDescription);
+            if (hypervisor != null) {
+                return hypervisor;
             }
         }
         LOGGER.log(Level.SEVERE, "Could not find our libvirt cloud instance!");
@@ -148,65 +172,189 @@ public class VirtualMachineLauncher extends DelegatingComputerLauncher {
         return lookupHypervisorInstance();
     }
 
+    /**
+     * Starts the virtual machine and connects the agent, returning once the agent is online.
+     * If a launch is already in progress, waits for that one instead.
+     *
+     * @throws IOException if the agent did not come online
+     */
     @Override
     public void launch(SlaveComputer slaveComputer, TaskListener taskListener) throws IOException, InterruptedException {
-
-        taskListener.getLogger().println("Virtual machine \"" + virtualMachineName + "\" (agent title \"" + slaveComputer.getDisplayName() + "\") is to be started.");
-        try {
-            if (virtualMachine == null) {
-                taskListener.getLogger().println("No connection ready to the Hypervisor, connecting...");
-                lookupVirtualMachineHandle();
-                if (virtualMachine == null) { // still null? no such vm!
-                    throw new Exception(
-                        "Virtual machine \"" + virtualMachineName + "\" (agent title \"" + slaveComputer.getDisplayName() + "\") not found on the specified hypervisor!"
-                    );
+        boolean online;
+        Launch launch = prepareLaunch(slaveComputer, taskListener, false);
+        if (launch.sequence != null) {
+            online = launch.run();
+        } else {
+            try {
+                online = launch.result.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
                 }
+                throw new IOException("Failed to launch virtual machine \"" + virtualMachineName + "\"", cause);
             }
+        }
+        if (!online) {
+            throw new IOException("Agent for virtual machine \"" + virtualMachineName + "\" did not come online");
+        }
+    }
 
-            ComputerUtils.start(virtualMachine, taskListener);
-            taskListener.getLogger().println("Waiting for " + waitingTimeSecs + "s to let it fully boot up...");
-            Thread.sleep(TimeUnit.SECONDS.toMillis(waitingTimeSecs));
-
-            int retries = -1;
-            while (true) {
-                retries++;
+    /**
+     * Starts the virtual machine and connects the agent on another thread,
+     * unless a launch is already in progress. This is for callers which are
+     * not a {@link SlaveComputer} connecting, e.g. a relaunch after a revert.
+     *
+     * @param slaveComputer the computer to launch
+     * @param taskListener the launch log
+     * @return completes with whether the agent came online
+     */
+    public CompletableFuture<Boolean> startLaunch(SlaveComputer slaveComputer, TaskListener taskListener) {
+        return startLaunch(slaveComputer, taskListener, false);
+    }
 
-                taskListener.getLogger().println("Connecting agent client.");
+    /**
+     * Connects the agent to its running virtual machine on another thread,
+     * without booting it or waiting for it, unless a launch is already in progress.
+     *
+     * @param slaveComputer the computer to launch
+     * @param taskListener the launch log
+     * @return completes with whether the agent came online
+     */
+    public CompletableFuture<Boolean> startReconnect(SlaveComputer slaveComputer, TaskListener taskListener) {
+        return startLaunch(slaveComputer, taskListener, true);
+    }
 
-                // This call doesn't seem to actually throw anything, but we'll catch IOException just in case
+    private CompletableFuture<Boolean> startLaunch(SlaveComputer slaveComputer, TaskListener taskListener,
+                                                   boolean running) {
+        final Launch launch;
+        try {
+            launch = prepareLaunch(slaveComputer, taskListener, running);
+        } catch (IOException e) {
+            CompletableFuture<Boolean> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        if (launch.sequence != null) {
+            Computer.threadPoolForRemoting.submit(() -> {
                 try {
-                    launcher.launch(slaveComputer, taskListener);
+                    launch.run();
                 } catch (IOException e) {
-                    taskListener.getLogger().println("unexpectedly caught exception when delegating launch of agent: " + e.getMessage());
+                    // reported by the launch already
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+            });
+        }
+        return launch.result;
+    }
 
-                if (slaveComputer.isOnline()) {
-                    break;
-                } else if (retries >= timesToRetryOnFailure) {
-                    taskListener.getLogger().println("Maximum retries reached. Failed to start agent client.");
-                    break;
-                }
+    /**
+     * Registers a new launch, or returns the one in progress.
+     */
+    private synchronized Launch prepareLaunch(SlaveComputer slaveComputer, TaskListener taskListener,
+                                              boolean running) throws IOException {
+        if (pendingLaunch != null && !pendingLaunch.isDone()) {
+            taskListener.getLogger().println("Virtual machine \"" + virtualMachineName + "\" is already being launched.");
+            return new Launch(null, pendingLaunch, slaveComputer, taskListener, running);
+        }
 
-                taskListener.getLogger().println("Not up yet, waiting for " + waitingTimeSecs + "s more ("
-                                                 + retries + "/" + timesToRetryOnFailure + " retries)");
-                Thread.sleep(TimeUnit.SECONDS.toMillis(waitingTimeSecs));
+        taskListener.getLogger().println("Virtual machine \"" + virtualMachineName + "\" (agent title \"" + slaveComputer.getDisplayName() + "\") is to be started.");
+        if (!isCurrent(virtualMachine)) {
+            taskListener.getLogger().println("No connection ready to the Hypervisor, connecting...");
+            lookupVirtualMachineHandle();
+            if (virtualMachine == null) { // still null? no such vm!
+                String message = "Virtual machine \"" + virtualMachineName + "\" (agent title \"" + slaveComputer.getDisplayName() + "\") not found on the specified hypervisor!";
+                taskListener.fatalError(message);
+                LOGGER.log(Level.SEVERE, message);
+                throw new IOException(message);
             }
-        } catch (IOException e) {
-            taskListener.fatalError(e.getMessage(), e);
+        }
+
+        LaunchSequence sequence = new LaunchSequence(launcher, virtualMachine, slaveComputer, taskListener,
+                                                     waitingTimeSecs, timesToRetryOnFailure);
+        pendingLaunch = new CompletableFuture<>();
+        return new Launch(sequence, pendingLaunch, slaveComputer, taskListener, running);
+    }
+
+    /**
+     * A launch, which either runs its sequence or waits for a launch in progress.
+     */
+    private final class Launch {
+        private final LaunchSequence sequence;
+        private final CompletableFuture<Boolean> result;
+        private final SlaveComputer slaveComputer;
+        private final TaskListener taskListener;
+        private final boolean running;
+
+        private Launch(LaunchSequence sequence, CompletableFuture<Boolean> result, SlaveComputer slaveComputer,
+                       TaskListener taskListener, boolean running) {
+            this.sequence = sequence;
+            this.result = result;
+            this.slaveComputer = slaveComputer;
+            this.taskListener = taskListener;
+            this.running = running;
+        }
+
+        /**
+         * Runs the sequence on the calling thread and completes the result with its outcome.
+         */
+        private boolean run() throws IOException, InterruptedException {
+            Hypervisor hypervisor = sequence.getVirtualMachine().getHypervisor();
+            try {
+                awaitReset();
+                boolean online = running ? sequence.reconnect() : sequence.start();
+                result.complete(online);
+                return online;
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                result.completeExceptionally(e);
+                throw e;
+            } finally {
+                // the launched machine may have come from the warm pool
+                hypervisor.refillWarmPool();
+            }
+        }
 
-            LogRecord rec = new LogRecord(Level.SEVERE, "Error while launching {0} on Hypervisor {1}.");
-            rec.setParameters(new Object[]{virtualMachine.getName(), virtualMachine.getHypervisor().getHypervisorURI()});
-            rec.setThrown(e);
-            LOGGER.log(rec);
-            throw e;
-        } catch (Exception t) {
-            taskListener.fatalError(t.getMessage(), t);
+        private void awaitReset() throws InterruptedException {
+            if (!(slaveComputer instanceof VirtualMachineSlaveComputer)) {
+                return;
+            }
+            CompletableFuture<Void> reset = ((VirtualMachineSlaveComputer) slaveComputer).getPendingReset();
+            if (!reset.isDone()) {
+                taskListener.getLogger().println("Waiting for the reset of virtual machine \"" + virtualMachineName + "\" to finish...");
+            }
+            try {
+                reset.get();
+            } catch (ExecutionException e) {
+                // a failed reset has been reported already, try the launch anyway
+            }
+        }
+    }
 
-            LogRecord rec = new LogRecord(Level.SEVERE, "Error while launching {0} on Hypervisor {1}.");
-            rec.setParameters(new Object[]{virtualMachine.getName(), virtualMachine.getHypervisor().getHypervisorURI()});
-            rec.setThrown(t);
-            LOGGER.log(rec);
+    public int getWaitingTimeSecs() {
+        return waitingTimeSecs;
+    }
+
+    /**
+     * Runs an action on the virtual machine unless the agent is being
+     * launched, and keeps a launch from starting until the action is done.
+     *
+     * @param action the action, e.g. suspending the virtual machine
+     * @return whether the action ran
+     */
+    synchronized boolean runUnlessLaunching(Runnable action) {
+        if (isLaunchInProgress()) {
+            return false;
         }
+        action.run();
+        return true;
+    }
+
+    /**
+     * @return whether a launch is still in progress
+     */
+    public synchronized boolean isLaunchInProgress() {
+        return pendingLaunch != null && !pendingLaunch.isDone();
     }
 
     @Override
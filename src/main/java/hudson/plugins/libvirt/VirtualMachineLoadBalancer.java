@@ -0,0 +1,117 @@
+package hudson.plugins.libvirt;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.LoadBalancer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.MappingWorksheet;
+import hudson.plugins.libvirt.lib.DomainState;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Assigns tasks to the virtual machine agent which needs the least work on
+ * its virtual machine before the task can run. Agents are ranked by
+ * <ol>
+ * <li>whether the virtual machine is still in the Before Job snapshot of the task,</li>
+ * <li>their {@link Warmth}: idle online agents before busy ones, running
+ * virtual machines before suspended or saved ones before stopped ones,</li>
+ * <li>the capacity left on their hypervisor, to spread the load.</li>
+ * </ol>
+ *
+ * Wraps the load balancer Jenkins would use otherwise and keeps its choice
+ * unless it picked a virtual machine agent and a better scored one is
+ * available, so other agents are not affected. Only tasks consisting of a single
+ * subtask are rebalanced, everything is read from caches since this runs
+ * with the queue locked.
+ */
+public class VirtualMachineLoadBalancer extends LoadBalancer {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualMachineLoadBalancer.class.getName());
+
+    private static final int WARMTH_WEIGHT = 10;
+    private static final int SNAPSHOT_WEIGHT = WARMTH_WEIGHT * Warmth.values().length;
+
+    private final LoadBalancer fallback;
+
+    public VirtualMachineLoadBalancer(LoadBalancer fallback) {
+        this.fallback = fallback;
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void install() {
+        Queue queue = Jenkins.get().getQueue();
+        if (!(queue.getLoadBalancer() instanceof VirtualMachineLoadBalancer)) {
+            queue.setLoadBalancer(new VirtualMachineLoadBalancer(queue.getLoadBalancer()));
+        }
+    }
+
+    @Override
+    public MappingWorksheet.Mapping map(Queue.Task task, MappingWorksheet worksheet) {
+        MappingWorksheet.Mapping mapping = fallback.map(task, worksheet);
+        if (worksheet.works.size() != 1) {
+            return mapping;
+        }
+
+        if (mapping != null && !(mapping.assigned(0).node instanceof VirtualMachineSlave)) {
+            return mapping;
+        }
+
+        MappingWorksheet.ExecutorChunk best = null;
+        int bestScore = mapping != null ? score(task, mapping.assigned(0).node) : Integer.MIN_VALUE;
+        for (MappingWorksheet.ExecutorChunk chunk : worksheet.works(0).applicableExecutorChunks()) {
+            if (!(chunk.node instanceof VirtualMachineSlave)) {
+                continue;
+            }
+            int score = score(task, chunk.node);
+            if (score > bestScore) {
+                best = chunk;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            return mapping;
+        }
+
+        MappingWorksheet.Mapping better = worksheet.new Mapping();
+        better.assign(0, best);
+        if (!better.isCompletelyValid()) {
+            return mapping;
+        }
+        LOGGER.log(Level.FINE, "Assigning {0} to {1} (score {2})",
+                   new Object[]{task.getFullDisplayName(), best.node.getNodeName(), bestScore});
+        return better;
+    }
+
+    /**
+     * @param task the task
+     * @param node a candidate node
+     * @return how little work the virtual machine of the node needs before the task can run, higher is better
+     */
+    protected int score(Queue.Task task, Node node) {
+        if (!(node instanceof VirtualMachineSlave)) {
+            return 0;
+        }
+        VirtualMachineSlave slave = (VirtualMachineSlave) node;
+        Hypervisor hypervisor = HypervisorRegistry.getByDescription(slave.getHypervisorDescription());
+        if (hypervisor == null) {
+            return 0;
+        }
+
+        int score = 0;
+        String snapshotName = VirtualMachineSlaveComputer.getBeforeJobSnapshotName(slave, task);
+        if (snapshotName != null
+            && hypervisor.getSnapshotTracker().isTrackedClean(slave.getVirtualMachineName(), snapshotName)) {
+            score += SNAPSHOT_WEIGHT;
+        }
+        // whether there is a managed save image is not cached, such virtual machines rank as stopped
+        DomainState state = hypervisor.peekDomainState(slave.getVirtualMachineName());
+        score += Warmth.of(node.toComputer(), state, false).ordinal() * WARMTH_WEIGHT;
+        score += (int) Math.round(hypervisor.getFreeCapacityRatio() * (WARMTH_WEIGHT - 1));
+        return score;
+    }
+}
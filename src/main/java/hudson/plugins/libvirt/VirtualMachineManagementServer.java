@@ -4,7 +4,7 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
-import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.DomainSummary;
 import hudson.plugins.libvirt.lib.VirtException;
 
 import jenkins.model.Jenkins;
@@ -42,8 +42,8 @@ public class VirtualMachineManagementServer implements Describable<VirtualMachin
         this.theCloud = PluginImpl.getInstance().getServer(host);
     }
 
-    public Collection<IDomain> getDomains() throws VirtException {
-        return this.theCloud.getDomains().values();
+    public Collection<DomainSummary> getDomains() throws VirtException {
+        return this.theCloud.getDomainSummaries().values();
     }
 
 
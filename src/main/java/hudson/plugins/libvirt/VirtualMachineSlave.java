@@ -26,7 +26,6 @@ import hudson.plugins.libvirt.lib.VirtException;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Slave;
-import hudson.slaves.Cloud;
 import hudson.slaves.ComputerListener;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.ComputerLauncher;
@@ -44,6 +43,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * @author Marco Mornati
@@ -62,6 +62,16 @@ public class VirtualMachineSlave extends Slave {
     private final boolean     rebootAfterRun;
     private final int         startupTimesToRetryOnFailure;
     private final String      beforeJobSnapshotName;
+    private List<ReadinessProbe> readinessProbes;
+    private int shutdownTimeoutSeconds;
+    private String overlayDiskPath;
+    private String baseImagePath;
+
+    /**
+     * How long a shutdown may take before the virtual machine is destroyed, for newly configured agents.
+     * Agents configured before the timeout existed keep 0, they do not wait for the shutdown.
+     */
+    public static final int DEFAULT_SHUTDOWN_TIMEOUT_SECONDS = 120;
 
     @DataBoundConstructor
     public VirtualMachineSlave(String name, String nodeDescription, String remoteFS,
@@ -136,6 +146,52 @@ public class VirtualMachineSlave extends Slave {
         return beforeJobSnapshotName;
     }
 
+    public List<ReadinessProbe> getReadinessProbes() {
+        return readinessProbes != null ? readinessProbes : Collections.emptyList();
+    }
+
+    @DataBoundSetter
+    public void setReadinessProbes(List<ReadinessProbe> readinessProbes) {
+        this.readinessProbes = readinessProbes != null ? new ArrayList<>(readinessProbes) : null;
+    }
+
+    /**
+     * @return how long to wait for a graceful shutdown, 0 to not wait at all
+     */
+    public int getShutdownTimeoutSeconds() {
+        return Math.max(0, shutdownTimeoutSeconds);
+    }
+
+    @DataBoundSetter
+    public void setShutdownTimeoutSeconds(int shutdownTimeoutSeconds) {
+        this.shutdownTimeoutSeconds = shutdownTimeoutSeconds;
+    }
+
+    public String getOverlayDiskPath() {
+        return overlayDiskPath;
+    }
+
+    @DataBoundSetter
+    public void setOverlayDiskPath(String overlayDiskPath) {
+        this.overlayDiskPath = Util.fixEmptyAndTrim(overlayDiskPath);
+    }
+
+    public String getBaseImagePath() {
+        return baseImagePath;
+    }
+
+    @DataBoundSetter
+    public void setBaseImagePath(String baseImagePath) {
+        this.baseImagePath = Util.fixEmptyAndTrim(baseImagePath);
+    }
+
+    /**
+     * @return whether the virtual machine runs on a throwaway overlay which is recreated instead of reverting a snapshot
+     */
+    public boolean isOverlayReset() {
+        return overlayDiskPath != null && baseImagePath != null;
+    }
+
     /**
      * For UI.
      *
@@ -166,13 +222,8 @@ public class VirtualMachineSlave extends Slave {
 
             VirtualMachineLauncher vmL = (VirtualMachineLauncher) ((SlaveComputer) c).getLauncher();
             try {
-                Hypervisor vmC = vmL.findOurHypervisorInstance();
-                if (!vmC.markVMOnline(c.getDisplayName(), vmL.getVirtualMachineName())) {
-                    throw new AbortException("Capacity threshold  (" + vmC.getMaxOnlineSlaves()
-                                             + ") reached at hypervisor \""
-                                             + vmC.getHypervisorDescription()
-                                             + "\", agent commissioning delayed.");
-                }
+                // the launch itself waits for a free slot at the hypervisor, see LaunchSequence
+                vmL.findOurHypervisorInstance();
             } catch (VirtException e) {
                 LOGGER.log(Level.WARNING, "aborting agent launch due to:", e);
                 throw new AbortException(e.getMessage());
@@ -181,7 +232,7 @@ public class VirtualMachineSlave extends Slave {
     }
 
     @Extension
-    public static final class DescriptorImpl extends SlaveDescriptor {
+    public static class DescriptorImpl extends SlaveDescriptor {
 
         private static final String DESCRIPTION = " A hypervisor description";
         private static final String VMNAME = "A VM name";
@@ -202,6 +253,10 @@ public class VirtualMachineSlave extends Slave {
             return true;
         }
 
+        public int getDefaultShutdownTimeoutSeconds() {
+            return DEFAULT_SHUTDOWN_TIMEOUT_SECONDS;
+        }
+
         public List<VirtualMachine> getDefinedVirtualMachines(String description) {
             List<VirtualMachine> virtualMachinesList = new ArrayList<>();
             Hypervisor hypervisor = getHypervisorByDescription(description);
@@ -223,11 +278,8 @@ public class VirtualMachineSlave extends Slave {
         public ListBoxModel doFillHypervisorDescriptionItems() {
             ListBoxModel items = new ListBoxModel();
             Jenkins.get().checkPermission(Jenkins.ADMINISTER);
-            for (Cloud cloud : Jenkins.get().clouds) {
-                if (cloud instanceof Hypervisor) {
-                    items.add(((Hypervisor) cloud).getHypervisorURI(),
-                              ((Hypervisor) cloud).getHypervisorDescription());
-                }
+            for (Hypervisor hypervisor : HypervisorRegistry.getHypervisors()) {
+                items.add(hypervisor.getHypervisorURI(), hypervisor.getHypervisorDescription());
             }
             return items;
         }
@@ -246,12 +298,7 @@ public class VirtualMachineSlave extends Slave {
 
         private Hypervisor getHypervisorByDescription(String description) {
             if (description != null && !description.isEmpty()) {
-                for (Cloud cloud : Jenkins.get().clouds) {
-                    if (cloud instanceof Hypervisor
-                        && ((Hypervisor) cloud).getHypervisorDescription().equals(description)) {
-                        return (Hypervisor) cloud;
-                    }
-                }
+                return HypervisorRegistry.getByDescription(description);
             }
             return null;
         }
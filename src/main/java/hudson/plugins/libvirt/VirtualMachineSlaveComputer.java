@@ -16,7 +16,8 @@
  */
 package hudson.plugins.libvirt;
 
-import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
@@ -27,8 +28,10 @@ import hudson.model.Job;
 import hudson.model.Queue;
 import hudson.model.Slave;
 import hudson.plugins.libvirt.lib.VirtException;
+import hudson.slaves.ComputerLauncher;
 import hudson.slaves.OfflineCause;
 import hudson.slaves.SlaveComputer;
+import jenkins.model.Jenkins;
 
 /**
  * Represents the running state of a virtual machine slave computer that holds Executors.
@@ -39,6 +42,11 @@ public class VirtualMachineSlaveComputer extends SlaveComputer {
 
     private static final Logger LOGGER = Logger.getLogger(VirtualMachineSlaveComputer.class.getName());
 
+    private transient volatile CompletableFuture<Void> pendingReset;
+    private transient volatile CompletableFuture<Void> pendingPreparation;
+    private final Object revertLock = new Object();
+    private final Object preparationLock = new Object();
+
     public VirtualMachineSlaveComputer(Slave slave) {
         super(slave);
     }
@@ -73,8 +81,123 @@ public class VirtualMachineSlaveComputer extends SlaveComputer {
         LOGGER.log(Level.SEVERE, message);
     }
 
+    /**
+     * The virtual machine may also be booted in the background, e.g. when it
+     * is relaunched after a revert, so report that as connecting as well.
+     */
+    @Override
+    public boolean isConnecting() {
+        if (super.isConnecting()) {
+            return true;
+        }
+        ComputerLauncher launcher = getLauncher();
+        return isOffline() && launcher instanceof VirtualMachineLauncher
+                && ((VirtualMachineLauncher) launcher).isLaunchInProgress();
+    }
+
+    /**
+     * For UI.
+     *
+     * @return the observed boot times of this agent
+     */
+    public BootTimeHistory getBootTimeHistory() {
+        return BootTimeHistory.forNode(getName());
+    }
+
+    /**
+     * While its virtual machine is being reset or reverted to a Before Job
+     * snapshot the node cannot take tasks, so that the queue does not wait for it.
+     */
+    @Override
+    public boolean isAcceptingTasks() {
+        return super.isAcceptingTasks() && getPendingReset().isDone() && !isPreparing();
+    }
+
+    private boolean isPreparing() {
+        CompletableFuture<Void> preparation = pendingPreparation;
+        return preparation != null && !preparation.isDone();
+    }
+
+    /**
+     * Like {@link #isPreparedFor(String)}, but only from what has been tracked, without asking the hypervisor.
+     * Safe to call with the queue locked.
+     *
+     * @param snapshotName a Before Job snapshot
+     * @return whether the virtual machine was last reverted to the snapshot and not used since
+     */
+    boolean isTrackedPreparedFor(String snapshotName) {
+        VirtualMachineSlave slave = (VirtualMachineSlave) getNode();
+        if (slave == null) {
+            return false;
+        }
+        Hypervisor hypervisor = HypervisorRegistry.getByDescription(slave.getHypervisorDescription());
+        return hypervisor != null
+               && hypervisor.getSnapshotTracker().isTrackedClean(slave.getVirtualMachineName(), snapshotName);
+    }
+
+    /**
+     * Asks the hypervisor, so this must not be called with the queue locked.
+     *
+     * @param snapshotName a Before Job snapshot
+     * @return whether the virtual machine has been reverted to the snapshot and not used since
+     */
+    boolean isPreparedFor(String snapshotName) {
+        VirtualMachineLauncher launcher = (VirtualMachineLauncher) getLauncher();
+        VirtualMachine virtualMachine = launcher.getVirtualMachine();
+        return virtualMachine != null
+               && virtualMachine.getHypervisor().getSnapshotTracker().isClean(virtualMachine, snapshotName);
+    }
+
+    /**
+     * Reverts the virtual machine to a Before Job snapshot and relaunches the
+     * agent in the background, so a task needing the snapshot can be accepted
+     * without any work on the virtual machine.
+     *
+     * @param snapshotName the Before Job snapshot
+     * @return completes when the agent has been relaunched
+     */
+    CompletableFuture<Void> prepareBeforeJobSnapshot(final String snapshotName) {
+        // not the monitor of the computer, this is called with the queue locked
+        synchronized (preparationLock) {
+            CompletableFuture<Void> preparation = pendingPreparation;
+            if (preparation != null && !preparation.isDone()) {
+                return preparation;
+            }
+            final VirtualMachineSlave slave = (VirtualMachineSlave) getNode();
+            if (slave == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            info("Preparing Before Job snapshot '" + snapshotName + "' ahead of assignment");
+            preparation = CompletableFuture.runAsync(() -> revertToBeforeJobSnapshot(slave, snapshotName),
+                                                     threadPoolForRemoting);
+            // the queue has to look at the node again once it accepts tasks
+            preparation.whenComplete((result, e) -> Jenkins.get().getQueue().scheduleMaintenance());
+            pendingPreparation = preparation;
+            return preparation;
+        }
+    }
+
+    /**
+     * @return completes when the virtual machine has been reset after the last disconnect
+     */
+    CompletableFuture<Void> getPendingReset() {
+        CompletableFuture<Void> reset = pendingReset;
+        return reset != null ? reset : CompletableFuture.completedFuture(null);
+    }
+
+    private void awaitReset() {
+        try {
+            getPendingReset().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            error("Could not reset VM: " + e);
+        }
+    }
+
     /**
      * On disconnect, stop the virtual machine and revert to the "Revert" snapshot if set.
+     * This happens in the background, the node does not accept tasks until it is done.
      *
      * If the cause of the disconnection is "OfflineClause.RevertSnapshot" do not revert
      * to the "Revert" snapshot as we are already disconnecting to revert to another
@@ -106,13 +229,71 @@ public class VirtualMachineSlaveComputer extends SlaveComputer {
         }
 
         info("Preparing to shut down VM '" + slave.getVirtualMachineName() + "' (agent '" + getDisplayName() + "'): " + reason);
+        final Future<?> disconnected = super.disconnect(cause);
+        CompletableFuture<Void> reset = hypervisor.submitReset(() -> {
+            reset(slave, vmL, hypervisor, cause);
+            try {
+                disconnected.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.FINE, "Disconnecting " + getDisplayName() + " failed", e);
+            }
+        });
+        pendingReset = reset;
+        return reset;
+    }
+
+    /**
+     * Stops the virtual machine, recreates its overlay or reverts it to the "Revert" snapshot if set
+     * and releases its capacity.
+     */
+    private void reset(VirtualMachineSlave slave, VirtualMachineLauncher vmL, Hypervisor hypervisor, OfflineCause cause) {
         try {
-            ComputerUtils.stop(vmL.getVirtualMachine(), slave.getShutdownMethod(), getListener());
+            // Reset the node to a fresh overlay or the "Revert" snapshot unless we are disconnecting to revert another snapshot
+            boolean overlay = !(cause instanceof OfflineClause.RevertSnapshot) && slave.isOverlayReset();
+            boolean revert = !(cause instanceof OfflineClause.RevertSnapshot) && !overlay && !slave.getSnapshotName().isEmpty();
+
+            // Reverting to a snapshot of a running guest replaces the running guest, stopping it first is wasted time
+            boolean live = cause instanceof OfflineClause.RevertSnapshot
+                    ? ((OfflineClause.RevertSnapshot) cause).isLive()
+                    : revert && ComputerUtils.isLiveSnapshot(vmL.getVirtualMachine(), slave.getSnapshotName(), getListener());
+
+            // Reverting to a Before Job snapshot replaces the disks, rebooting after a run is meant to boot afresh
+            boolean reboot = cause instanceof OfflineClause.Reboot;
+            boolean fresh = revert || overlay || reboot || cause instanceof OfflineClause.RevertSnapshot;
+
+            String shutdownMethod = slave.getShutdownMethod();
+            if (fresh && "managedsave".equals(shutdownMethod)) {
+                // the saved memory would not match the reverted disks, and starting would restore it instead of booting
+                shutdownMethod = "shutdown";
+            } else if ((overlay || reboot) && "suspend".equals(shutdownMethod)) {
+                // the overlay cannot be replaced while the guest still uses it, and a suspended guest would not reboot
+                shutdownMethod = "shutdown";
+            }
+            long start = System.currentTimeMillis();
+            if (live) {
+                info("Not stopping VM '" + slave.getVirtualMachineName() + "', it is reverted to a running snapshot");
+            } else {
+                // Wait until the VM is off, a revert could fail or race with a guest that is still shutting down
+                ComputerUtils.stop(vmL.getVirtualMachine(), shutdownMethod, slave.getShutdownTimeoutSeconds(), getListener());
+                info("Stopping VM '" + slave.getVirtualMachineName() + "' took " + (System.currentTimeMillis() - start) + "ms");
+            }
 
-            // Revert the node to the "Revert" snapshot unless we are disconnecting to revert another snapshot
-            if (!(cause instanceof OfflineClause.RevertSnapshot) && !slave.getSnapshotName().isEmpty()) {
+            if (!revert && !(cause instanceof OfflineClause.RevertSnapshot)) {
+                // stopped, or on a fresh overlay, it is not in the snapshot it was last reverted to
+                hypervisor.getSnapshotTracker().dirty(slave.getVirtualMachineName());
+            }
+
+            if (overlay) {
+                start = System.currentTimeMillis();
+                ComputerUtils.resetOverlay(vmL.getVirtualMachine(), slave.getOverlayDiskPath(), slave.getBaseImagePath(), getListener());
+                info("Recreating the overlay of VM '" + slave.getVirtualMachineName() + "' took " + (System.currentTimeMillis() - start) + "ms");
+            } else if (revert) {
                 info("Preparing to revert VM '" + slave.getVirtualMachineName() + "' to Revert snapshot '" + slave.getSnapshotName() + "'");
+                start = System.currentTimeMillis();
                 ComputerUtils.revertToSnapshot(vmL.getVirtualMachine(), slave.getSnapshotName(), getListener());
+                info("Reverting VM '" + slave.getVirtualMachineName() + "' took " + (System.currentTimeMillis() - start) + "ms");
             }
 
             hypervisor.markVMOffline(getDisplayName(), vmL.getVirtualMachineName());
@@ -124,8 +305,6 @@ public class VirtualMachineSlaveComputer extends SlaveComputer {
             rec.setThrown(t);
             LOGGER.log(rec);
         }
-
-        return super.disconnect(cause);
     }
 
     /**
@@ -145,6 +324,7 @@ public class VirtualMachineSlaveComputer extends SlaveComputer {
             // Disconnect will handle the 'Revert' snapshot if it's configured on the node
             ComputerUtils.disconnect(slave.getVirtualMachineName(), executor.getOwner(), getListener(),
                     new OfflineClause.Reboot("Reboot after run"));
+            awaitReset();
             ComputerUtils.start(virtualMachine, getListener());
         }
     }
@@ -162,73 +342,104 @@ public class VirtualMachineSlaveComputer extends SlaveComputer {
     }
 
     /**
-     * On task start, revert the node to the BeforeJobSnapshot if it's set on the Job or the Node.
+     * @param slave the node
+     * @param task a task about to run on the node
+     * @return the Before Job snapshot of the job if set, else the one of the node if set, else null
+     */
+    static String getBeforeJobSnapshotName(VirtualMachineSlave slave, Queue.Task task) {
+        if (task.getOwnerTask() instanceof Job) {
+            BeforeJobSnapshotJobProperty prop = ((Job<?, ?>) task.getOwnerTask())
+                    .getProperty(BeforeJobSnapshotJobProperty.class);
+            if (prop != null && prop.getSnapshotName() != null && !prop.getSnapshotName().isEmpty()) {
+                return prop.getSnapshotName();
+            }
+        }
+        String slaveBeforeJobSnapshotName = slave.getBeforeJobSnapshotName();
+        if (slaveBeforeJobSnapshotName != null && !slaveBeforeJobSnapshotName.isEmpty()) {
+            return slaveBeforeJobSnapshotName;
+        }
+        return null;
+    }
+
+    /**
+     * On task start, revert the node to the BeforeJobSnapshot if it's set on the Job or the Node,
+     * unless {@link BeforeJobSnapshotDispatcher} has done so already.
      *
      * @param executor The executor.
      * @param task The task.
      */
     @Override
-    public synchronized void taskAccepted(Executor executor, Queue.Task task) {
+    public void taskAccepted(Executor executor, Queue.Task task) {
         super.taskAccepted(executor, task);
 
         VirtualMachineSlave slave = (VirtualMachineSlave) this.getNode();
-        if (slave != null) {
-            String snapshotName = null;
-
-            Job<?, ?> job;
-            if (task.getOwnerTask() instanceof Job) {
-                job = (Job<?, ?>) task.getOwnerTask();
-            } else {
+        if (slave == null) {
+            return;
+        }
+        VirtualMachine virtualMachine = ((VirtualMachineLauncher) slave.getLauncher()).getVirtualMachine();
+        try {
+            if (!(task.getOwnerTask() instanceof Job)) {
                 warn("Unable to find job for task \"" + task.getName() + "\"");
                 return;
             }
 
-            // Get the Job BeforeJobSnapshot if it's set
-            BeforeJobSnapshotJobProperty prop = job.getProperty(BeforeJobSnapshotJobProperty.class);
-            String jobBeforeJobSnapshotName;
-            if (prop != null) {
-                jobBeforeJobSnapshotName = prop.getSnapshotName();
-
-                if (jobBeforeJobSnapshotName != null && !jobBeforeJobSnapshotName.isEmpty()) {
-                    info("Got Before Job snapshot '" + jobBeforeJobSnapshotName + "' from job configuration '" + job.getName() + "'");
-                    snapshotName = jobBeforeJobSnapshotName;
-                }
-            }
-
-            // If we didn't get a Job level BeforeJobSnapshot, get it from the Node if it's set
+            String snapshotName = getBeforeJobSnapshotName(slave, task);
             if (snapshotName == null) {
-                String slaveBeforeJobSnapshotName = slave.getBeforeJobSnapshotName();
-                if (slaveBeforeJobSnapshotName != null && !slaveBeforeJobSnapshotName.isEmpty()) {
-                    info("Got Before Job snapshot '" + slaveBeforeJobSnapshotName + "' from node configuration '" + getDisplayName() + "'");
-                    snapshotName = slaveBeforeJobSnapshotName;
-                }
+                return;
+            }
+            if (isPreparedFor(snapshotName)) {
+                info("VM '" + slave.getVirtualMachineName() + "' is still in Before Job snapshot '" + snapshotName + "', "
+                        + "not reverting it for task '" + task.getDisplayName() + "'");
+                return;
             }
 
-            // If we got a BeforeJobSnapshot from the Job or the Node, revert the Virtual Machine to it
-            if (snapshotName != null) {
-                VirtualMachineLauncher launcher = (VirtualMachineLauncher) slave.getLauncher();
-                VirtualMachine virtualMachine = launcher.getVirtualMachine();
+            info("Will revert VM '" + slave.getVirtualMachineName() + "' to Before Job snapshot '" + snapshotName + "' "
+                    + "for task '" + task.getDisplayName() + "'");
+            revertToBeforeJobSnapshot(slave, snapshotName);
+        } finally {
+            // whatever the task does, the virtual machine is not in the snapshot any more
+            if (virtualMachine != null) {
+                virtualMachine.getHypervisor().getSnapshotTracker().dirty(virtualMachine.getName());
+            }
+        }
+    }
 
-                info("Will revert VM '" + virtualMachine.getName() + "' to Before Job snapshot '" + snapshotName + "' "
-                        + "for task '" + task.getDisplayName() + "'");
+    /**
+     * Reverts the virtual machine to a Before Job snapshot and relaunches the agent.
+     *
+     * @return whether the agent came back online
+     */
+    private boolean revertToBeforeJobSnapshot(VirtualMachineSlave slave, String snapshotName) {
+        synchronized (revertLock) {
+            VirtualMachineLauncher launcher = (VirtualMachineLauncher) slave.getLauncher();
+            VirtualMachine virtualMachine = launcher.getVirtualMachine();
 
-                SlaveComputer slaveComputer = slave.getComputer();
-                if (slaveComputer == null) {
-                    error("Could not determine node.");
-                    return;
-                }
+            SlaveComputer slaveComputer = slave.getComputer();
+            if (slaveComputer == null) {
+                error("Could not determine node.");
+                return false;
+            }
 
-                ComputerUtils.disconnect(virtualMachine.getName(), slaveComputer, getListener(),
-                        new OfflineClause.RevertSnapshot("Reverting to snapshot '" + snapshotName + "'"));
-                ComputerUtils.revertToSnapshot(virtualMachine, snapshotName, getListener());
+            // A snapshot of a running guest is reverted to in place and the agent reconnects right away
+            boolean live = ComputerUtils.isLiveSnapshot(virtualMachine, snapshotName, getListener());
+            ComputerUtils.disconnect(virtualMachine.getName(), slaveComputer, getListener(),
+                    new OfflineClause.RevertSnapshot("Reverting to snapshot '" + snapshotName + "'", live));
+            awaitReset();
+            ComputerUtils.revertToSnapshot(virtualMachine, snapshotName, getListener());
+            if (!live) {
                 ComputerUtils.start(virtualMachine, getListener());
+            }
 
-                info("Relaunching agent '" + getDisplayName() + "'");
-                try {
-                    this.getLauncher().launch(slaveComputer, getListener());
-                } catch (IOException | InterruptedException e) {
-                    error("Could not relaunch agent: " + e);
+            info("Relaunching agent '" + getDisplayName() + "'");
+            try {
+                if (live) {
+                    return launcher.startReconnect(slaveComputer, getListener()).get();
+                } else {
+                    return launcher.startLaunch(slaveComputer, getListener()).get();
                 }
+            } catch (InterruptedException | ExecutionException e) {
+                error("Could not relaunch agent: " + e);
+                return false;
             }
         }
     }
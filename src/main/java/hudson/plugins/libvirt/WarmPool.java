@@ -0,0 +1,164 @@
+package hudson.plugins.libvirt;
+
+import hudson.AbortException;
+import hudson.model.Computer;
+import hudson.plugins.libvirt.lib.DomainState;
+import hudson.plugins.libvirt.lib.VirtException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+
+/**
+ * Keeps the virtual machines of a number of offline agents of one hypervisor
+ * booted and suspended, so that launching such an agent only needs to resume
+ * its virtual machine.
+ *
+ * Warm virtual machines occupy the hypervisor like running agents do, so
+ * they are admitted like them and hold their slot and resources until their
+ * agent has been launched and goes offline again. Suspending a machine and
+ * launching its agent exclude each other, see
+ * {@link VirtualMachineLauncher#runUnlessLaunching(Runnable)}.
+ */
+final class WarmPool {
+
+    private static final Logger LOGGER = Logger.getLogger(WarmPool.class.getName());
+
+    private final Hypervisor hypervisor;
+
+    /**
+     * Virtual machines which have been started and are about to be suspended.
+     */
+    private final Set<String> warming = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean refillRequested = new AtomicBoolean();
+
+    WarmPool(Hypervisor hypervisor) {
+        this.hypervisor = hypervisor;
+    }
+
+    /**
+     * Refills the pool in the background.
+     */
+    void requestRefill() {
+        if (refillRequested.compareAndSet(false, true)) {
+            Computer.threadPoolForRemoting.submit(() -> {
+                refillRequested.set(false);
+                refill();
+            });
+        }
+    }
+
+    /**
+     * Boots as many offline agents as are missing from the pool and the capacity of the hypervisor allows.
+     */
+    synchronized void refill() {
+        int size = hypervisor.getWarmPoolSize();
+        if (size <= 0) {
+            return;
+        }
+
+        int warm = 0;
+        List<VirtualMachineSlaveComputer> cold = new ArrayList<>();
+        for (VirtualMachineSlaveComputer computer : hypervisor.getOfflineComputers()) {
+            String vmName = ((VirtualMachineLauncher) computer.getLauncher()).getVirtualMachineName();
+            if (warming.contains(vmName)) {
+                warm++;
+                continue;
+            }
+            try {
+                DomainState state = hypervisor.lookupDomain(vmName).getState();
+                if (state == DomainState.PAUSED) {
+                    // admitted already, unless it was suspended before a restart
+                    admit(computer, vmName);
+                    warm++;
+                } else if (state == DomainState.SHUTOFF) {
+                    cold.add(computer);
+                }
+            } catch (VirtException e) {
+                LOGGER.log(Level.FINE, "Cannot determine state of virtual machine " + vmName, e);
+            }
+        }
+
+        int missing = size - warm;
+        for (int i = 0; missing > 0 && i < cold.size(); i++) {
+            VirtualMachineSlaveComputer computer = cold.get(i);
+            String vmName = ((VirtualMachineLauncher) computer.getLauncher()).getVirtualMachineName();
+            Admission admission = admit(computer, vmName);
+            if (admission == Admission.AT_CAPACITY) {
+                break;
+            }
+            if (admission == Admission.ADMITTED) {
+                warmUp(computer);
+                missing--;
+            }
+        }
+    }
+
+    /**
+     * Takes a slot of the hypervisor for the virtual machine, the launch of its agent finds it taken already.
+     */
+    private Admission admit(VirtualMachineSlaveComputer computer, String vmName) {
+        try {
+            return hypervisor.tryAdmitVM(computer.getDisplayName(), vmName);
+        } catch (AbortException e) {
+            LOGGER.log(Level.FINE, "Not keeping " + vmName + " warm: " + e.getMessage());
+            return Admission.TOO_LARGE;
+        }
+    }
+
+    private void release(VirtualMachineSlaveComputer computer, String vmName) {
+        try {
+            hypervisor.markVMOffline(computer.getDisplayName(), vmName);
+        } catch (VirtException e) {
+            LOGGER.log(Level.WARNING, "Failed to release the slot of " + vmName, e);
+        }
+    }
+
+    private void warmUp(final VirtualMachineSlaveComputer computer) {
+        final VirtualMachineLauncher launcher = (VirtualMachineLauncher) computer.getLauncher();
+        final VirtualMachine virtualMachine = launcher.getVirtualMachine();
+        if (virtualMachine == null) {
+            release(computer, launcher.getVirtualMachineName());
+            return;
+        }
+        final String vmName = virtualMachine.getName();
+
+        warming.add(vmName);
+        LOGGER.log(Level.INFO, "Booting {0} into the warm pool of {1}",
+                   new Object[]{vmName, hypervisor.getHypervisorHost()});
+        if (!ComputerUtils.start(virtualMachine)) {
+            warming.remove(vmName);
+            release(computer, vmName);
+            return;
+        }
+
+        // suspend it once it has booted completely, a slow boot is better than a half booted machine
+        BootTimeHistory history = computer.getBootTimeHistory();
+        long delay = history.isTrained()
+                ? history.percentile(0.9)
+                : TimeUnit.SECONDS.toMillis(launcher.getWaitingTimeSecs());
+        Timer.get().schedule(() -> Computer.threadPoolForRemoting.submit(() -> park(computer, virtualMachine)),
+                             delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void park(final VirtualMachineSlaveComputer computer, final VirtualMachine virtualMachine) {
+        try {
+            // the agent may have been launched in the meantime and uses the machine already
+            VirtualMachineLauncher launcher = (VirtualMachineLauncher) computer.getLauncher();
+            launcher.runUnlessLaunching(() -> {
+                if (computer.isOffline() && !computer.isConnecting()) {
+                    ComputerUtils.stop(virtualMachine, "suspend");
+                }
+            });
+        } finally {
+            warming.remove(virtualMachine.getName());
+        }
+    }
+}
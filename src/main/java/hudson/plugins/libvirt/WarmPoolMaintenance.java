@@ -0,0 +1,31 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically tops up the warm pools of the hypervisors, e.g. after agents
+ * went offline or virtual machines were stopped outside of Jenkins.
+ */
+@Extension
+public class WarmPoolMaintenance extends AsyncPeriodicWork {
+
+    public WarmPoolMaintenance() {
+        super("Libvirt warm pool maintenance");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(1);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        for (Hypervisor hypervisor : PluginImpl.getInstance().getServers()) {
+            hypervisor.refillWarmPool();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package hudson.plugins.libvirt;
+
+import hudson.model.Computer;
+import hudson.plugins.libvirt.lib.DomainState;
+
+/**
+ * How soon an agent can run a task, from the coldest to the warmest.
+ */
+enum Warmth {
+    /**
+     * The state of the virtual machine is not known.
+     */
+    UNKNOWN,
+    /**
+     * The virtual machine has to boot.
+     */
+    STOPPED,
+    /**
+     * The virtual machine only has to be resumed or restored from its managed save image.
+     */
+    SUSPENDED,
+    /**
+     * The virtual machine is running, the agent only has to connect or finish its current work.
+     */
+    RUNNING,
+    /**
+     * The agent is online and idle.
+     */
+    IDLE;
+
+    /**
+     * @param computer the computer of the agent
+     * @param state the state of its virtual machine, null if not known
+     * @param managedSave whether the virtual machine has a managed save image
+     * @return the warmth of the agent
+     */
+    static Warmth of(Computer computer, DomainState state, boolean managedSave) {
+        if (computer != null && computer.isOnline()) {
+            return computer.isIdle() ? IDLE : RUNNING;
+        }
+        if (state == null) {
+            return UNKNOWN;
+        }
+        switch (state) {
+            case RUNNING:
+            case BLOCKED:
+                return RUNNING;
+            case PAUSED:
+            case PMSUSPENDED:
+                return SUSPENDED;
+            case SHUTOFF:
+                return managedSave ? SUSPENDED : STOPPED;
+            default:
+                return UNKNOWN;
+        }
+    }
+}
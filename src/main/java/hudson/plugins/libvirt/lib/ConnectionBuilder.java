@@ -3,11 +3,14 @@ package hudson.plugins.libvirt.lib;
 import hudson.plugins.libvirt.lib.libvirt.LibvirtConnectAuth;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import hudson.plugins.libvirt.lib.libvirt.LibVirtConnectImpl;
+import hudson.plugins.libvirt.lib.libvirt.LibVirtEventLoop;
+import hudson.plugins.libvirt.lib.libvirt.LibVirtExceptions;
 import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import org.libvirt.ConnectAuth;
+import org.libvirt.LibvirtException;
 
 /**
  * @author Nigel Magnay
@@ -18,6 +21,7 @@ public class ConnectionBuilder {
 
     private String uri;
     private boolean readOnly = false;
+    private boolean events = false;
 
     private final String hypervisorType;
     private String hypervisorTransport;
@@ -68,6 +72,17 @@ public class ConnectionBuilder {
         return this;
     }
 
+    /**
+     * Makes sure the libvirt event loop runs, so that lifecycle listeners
+     * can be registered on the connection.
+     *
+     * @return this builder
+     */
+    public ConnectionBuilder withEvents() {
+        this.events = true;
+        return this;
+    }
+
     public boolean isLibraryTransport() {
         return hypervisorTransport != null && hypervisorTransport.startsWith("libssh");
     }
@@ -80,6 +95,13 @@ public class ConnectionBuilder {
         if (isLibraryTransport() && credentials != null) {
             auth = new LibvirtConnectAuth(credentials, userName);
         }
+        if (events) {
+            try {
+                LibVirtEventLoop.ensureRunning();
+            } catch (LibvirtException e) {
+                throw LibVirtExceptions.wrap(e);
+            }
+        }
         return new LibVirtConnectImpl(uri, auth, readOnly);
     }
 
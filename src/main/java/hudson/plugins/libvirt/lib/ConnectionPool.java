@@ -0,0 +1,290 @@
+package hudson.plugins.libvirt.lib;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of connections to one hypervisor.
+ *
+ * Callers lease a connection for the duration of a single operation and hand
+ * it back afterwards, so that independent operations on the same hypervisor
+ * run in parallel instead of queueing on one shared connection. Idle
+ * connections are evicted and validated by {@link #maintain(long)}.
+ *
+ * Domains looked up on a connection keep using it after it has been handed
+ * back. Whoever keeps such handles registers a {@link CloseListener} and
+ * drops them once their connection is closed.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());
+
+    /**
+     * Creates a new, open connection to the hypervisor.
+     */
+    public interface ConnectionFactory {
+        IConnect create() throws VirtException;
+    }
+
+    /**
+     * An operation executed on a leased connection.
+     *
+     * @param <T> the result type
+     */
+    public interface Operation<T> {
+        T apply(IConnect connection) throws VirtException;
+    }
+
+    /**
+     * Notified whenever the pool closes one of its connections.
+     */
+    public interface CloseListener {
+        void connectionClosed(IConnect connection);
+    }
+
+    private static final class Entry {
+        private final IConnect connection;
+        private final long releasedAt;
+
+        private Entry(IConnect connection, long releasedAt) {
+            this.connection = connection;
+            this.releasedAt = releasedAt;
+        }
+    }
+
+    private final String name;
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final Semaphore permits;
+    private final Deque<Entry> idle = new ArrayDeque<>();
+    private final List<CloseListener> closeListeners = new CopyOnWriteArrayList<>();
+    private boolean closed;
+
+    /**
+     * @param name a human readable name of the hypervisor, used for logging
+     * @param factory creates new connections, usually via {@link ConnectionBuilder#build()}
+     * @param maxSize the maximum number of connections leased at the same time
+     */
+    public ConnectionPool(String name, ConnectionFactory factory, int maxSize) {
+        this.name = name;
+        this.factory = factory;
+        this.maxSize = Math.max(1, maxSize);
+        this.permits = new Semaphore(this.maxSize, true);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @param listener notified of every connection closed from now on
+     */
+    public void addCloseListener(CloseListener listener) {
+        closeListeners.add(listener);
+    }
+
+    /**
+     * Leases a connection, blocking while all connections are in use.
+     *
+     * @return an open connection which must be handed back through
+     *         {@link #release(IConnect)} or {@link #invalidate(IConnect)}
+     * @throws VirtException if no connection could be established
+     */
+    public IConnect lease() throws VirtException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VirtException("Interrupted while waiting for a connection to " + name, e);
+        }
+        try {
+            Entry entry;
+            while ((entry = pollIdle()) != null) {
+                if (isConnected(entry.connection)) {
+                    return entry.connection;
+                }
+                closeQuietly(entry.connection);
+            }
+            return connect();
+        } catch (VirtException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a healthy connection back to the pool.
+     *
+     * @param connection a connection obtained from {@link #lease()}
+     */
+    public void release(IConnect connection) {
+        boolean keep;
+        synchronized (this) {
+            keep = !closed && idle.size() < maxSize;
+            if (keep) {
+                idle.addFirst(new Entry(connection, System.currentTimeMillis()));
+            }
+        }
+        if (!keep) {
+            closeQuietly(connection);
+        }
+        permits.release();
+    }
+
+    /**
+     * Hands a broken connection back to the pool, closing it.
+     *
+     * @param connection a connection obtained from {@link #lease()}
+     */
+    public void invalidate(IConnect connection) {
+        closeQuietly(connection);
+        permits.release();
+    }
+
+    /**
+     * Runs an operation on a leased connection. The connection is handed back
+     * afterwards, or discarded if it turned out to be broken. Domains in the
+     * result only stay usable until the connection is closed, see
+     * {@link CloseListener}.
+     *
+     * @param operation the operation
+     * @param <T> the result type
+     * @return the result of the operation
+     * @throws VirtException if no connection is available or the operation failed
+     */
+    public <T> T execute(Operation<T> operation) throws VirtException {
+        IConnect connection = lease();
+        boolean healthy = false;
+        try {
+            T result = operation.apply(connection);
+            healthy = true;
+            return result;
+        } catch (VirtException e) {
+            healthy = isAlive(connection);
+            throw e;
+        } finally {
+            if (healthy) {
+                release(connection);
+            } else {
+                invalidate(connection);
+            }
+        }
+    }
+
+    /**
+     * Closes idle connections which have not been used for the given time
+     * and validates the remaining ones with a simple call.
+     *
+     * @param maxIdleMillis the maximum time a connection may stay unused
+     */
+    public void maintain(long maxIdleMillis) {
+        List<Entry> candidates;
+        synchronized (this) {
+            candidates = new ArrayList<>(idle);
+            idle.clear();
+        }
+
+        long now = System.currentTimeMillis();
+        List<Entry> keep = new ArrayList<>();
+        for (Entry entry : candidates) {
+            if (now - entry.releasedAt > maxIdleMillis) {
+                LOGGER.log(Level.FINE, "Evicting idle connection to {0}", name);
+                closeQuietly(entry.connection);
+            } else if (!isAlive(entry.connection)) {
+                LOGGER.log(Level.FINE, "Evicting broken connection to {0}", name);
+                closeQuietly(entry.connection);
+            } else {
+                keep.add(entry);
+            }
+        }
+
+        List<Entry> surplus = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : keep) {
+                if (!closed && idle.size() < maxSize) {
+                    idle.addLast(entry);
+                } else {
+                    surplus.add(entry);
+                }
+            }
+        }
+        for (Entry entry : surplus) {
+            closeQuietly(entry.connection);
+        }
+    }
+
+    /**
+     * Closes all idle connections. Leased connections are closed when they are handed back.
+     */
+    @Override
+    public void close() {
+        List<Entry> candidates;
+        synchronized (this) {
+            closed = true;
+            candidates = new ArrayList<>(idle);
+            idle.clear();
+        }
+        for (Entry entry : candidates) {
+            closeQuietly(entry.connection);
+        }
+    }
+
+    private synchronized Entry pollIdle() {
+        return idle.pollFirst();
+    }
+
+    private IConnect connect() throws VirtException {
+        LOGGER.log(Level.FINE, "Opening new connection to {0}", name);
+        try {
+            return factory.create();
+        } catch (VirtException e) {
+            LogRecord rec = new LogRecord(Level.SEVERE, "Failed to establish connection to {0}");
+            rec.setThrown(e);
+            rec.setParameters(new Object[]{name});
+            LOGGER.log(rec);
+            throw e;
+        }
+    }
+
+    private static boolean isConnected(IConnect connection) {
+        try {
+            return connection.isConnected();
+        } catch (VirtException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The connection might appear to be up but actually be dead (e.g. due to a
+     * restart of libvirtd), so try a simple function call and see if it turns out ok.
+     */
+    private static boolean isAlive(IConnect connection) {
+        try {
+            connection.getVersion();
+            return true;
+        } catch (VirtException e) {
+            return false;
+        }
+    }
+
+    private void closeQuietly(IConnect connection) {
+        try {
+            connection.close();
+        } catch (VirtException e) {
+            LOGGER.log(Level.FINE, "Failed to close connection to " + name, e);
+        }
+        for (CloseListener listener : closeListeners) {
+            listener.connectionClosed(connection);
+        }
+    }
+}
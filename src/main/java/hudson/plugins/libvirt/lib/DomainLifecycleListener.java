@@ -0,0 +1,24 @@
+package hudson.plugins.libvirt.lib;
+
+/**
+ * Receives lifecycle events of the domains on a hypervisor.
+ */
+public interface DomainLifecycleListener {
+    /**
+     * The kind of lifecycle change of a domain.
+     */
+    enum Event {
+        DEFINED,
+        UNDEFINED,
+        STARTED,
+        SUSPENDED,
+        RESUMED,
+        STOPPED,
+        SHUTDOWN,
+        PMSUSPENDED,
+        CRASHED,
+        UNKNOWN
+    }
+
+    void onLifecycleEvent(String domainName, Event event);
+}
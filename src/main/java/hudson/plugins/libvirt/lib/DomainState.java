@@ -0,0 +1,19 @@
+package hudson.plugins.libvirt.lib;
+
+/**
+ * The state of a domain as reported by the hypervisor.
+ */
+public enum DomainState {
+    NOSTATE,
+    RUNNING,
+    BLOCKED,
+    PAUSED,
+    SHUTDOWN,
+    SHUTOFF,
+    CRASHED,
+    PMSUSPENDED;
+
+    public boolean isRunningOrBlocked() {
+        return this == RUNNING || this == BLOCKED;
+    }
+}
@@ -0,0 +1,53 @@
+package hudson.plugins.libvirt.lib;
+
+/**
+ * Name, UUID, ID and state of a domain at the time it was enumerated,
+ * together with a handle to the domain itself.
+ */
+public final class DomainSummary {
+    private final IDomain domain;
+    private final String name;
+    private final String uuid;
+    private final int id;
+    private final DomainState state;
+
+    public DomainSummary(IDomain domain, String name, String uuid, int id, DomainState state) {
+        this.domain = domain;
+        this.name = name;
+        this.uuid = uuid;
+        this.id = id;
+        this.state = state;
+    }
+
+    public IDomain getDomain() {
+        return domain;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUUIDString() {
+        return uuid;
+    }
+
+    /**
+     * @return the ID of the running domain, or -1 if it is inactive
+     */
+    public int getID() {
+        return id;
+    }
+
+    public DomainState getState() {
+        return state;
+    }
+
+    public boolean isRunningOrBlocked() {
+        return state.isRunningOrBlocked();
+    }
+
+    @Override
+    public String toString() {
+        return "DomainSummary{name='" + name + "', uuid='" + uuid + "', id=" + id + ", state=" + state + '}';
+    }
+}
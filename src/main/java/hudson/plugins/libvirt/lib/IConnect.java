@@ -1,5 +1,7 @@
 package hudson.plugins.libvirt.lib;
 
+import java.util.List;
+
 /**
  * @author Nigel Magnay
  * @version 04/02/2014
@@ -11,12 +13,56 @@ public interface IConnect extends AutoCloseable {
 
     String[] listDefinedDomains() throws VirtException;
 
+    /**
+     * Enumerates all domains, active and inactive, together with their state.
+     * This takes a call to the hypervisor per domain.
+     *
+     * @return the domains
+     * @throws VirtException if the domains could not be listed
+     */
+    List<DomainSummary> listDomainSummaries() throws VirtException;
+
     IDomain domainLookupByName(String c) throws VirtException;
 
     IDomain domainLookupByID(int c) throws VirtException;
 
+    IDomain domainLookupByUUIDString(String uuid) throws VirtException;
+
+    IStorageVol storageVolLookupByPath(String path) throws VirtException;
+
+    /**
+     * Defines a persistent domain, without starting it.
+     *
+     * @param xml the domain description
+     * @return the new domain
+     * @throws VirtException if the domain could not be defined
+     */
+    IDomain domainDefineXML(String xml) throws VirtException;
+
+    /**
+     * @return the memory of the host in KiB
+     * @throws VirtException if the node info could not be read
+     */
+    long getNodeMemory() throws VirtException;
+
+    /**
+     * @return the number of active CPUs of the host
+     * @throws VirtException if the node info could not be read
+     */
+    int getNodeCpus() throws VirtException;
+
+    /**
+     * @return the free memory of the host in bytes
+     * @throws VirtException if the free memory could not be read
+     */
+    long getFreeMemory() throws VirtException;
+
     @Override
     void close() throws VirtException;
 
     boolean isConnected() throws VirtException;
+
+    void addLifecycleListener(DomainLifecycleListener listener) throws VirtException;
+
+    void removeLifecycleListener(DomainLifecycleListener listener) throws VirtException;
 }
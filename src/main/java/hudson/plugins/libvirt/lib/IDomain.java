@@ -7,12 +7,24 @@ package hudson.plugins.libvirt.lib;
 public interface IDomain {
     String getName() throws VirtException;
 
+    String getUUIDString() throws VirtException;
+
+    int getID() throws VirtException;
+
+    DomainState getState() throws VirtException;
+
     String[] snapshotListNames() throws VirtException;
 
     int snapshotNum() throws VirtException;
 
     IDomainSnapshot snapshotLookupByName(String snapshotName) throws VirtException;
 
+    /**
+     * @return the snapshot last reverted to or created
+     * @throws VirtException if there is no current snapshot or it could not be looked up
+     */
+    IDomainSnapshot snapshotCurrent() throws VirtException;
+
     void revertToSnapshot(IDomainSnapshot aVoid) throws VirtException;
 
     void shutdown() throws VirtException;
@@ -26,4 +38,26 @@ public interface IDomain {
     void destroy() throws VirtException;
 
     void suspend() throws VirtException;
+
+    void resume() throws VirtException;
+
+    void managedSave() throws VirtException;
+
+    boolean hasManagedSaveImage() throws VirtException;
+
+    String getXMLDesc() throws VirtException;
+
+    /**
+     * @return the maximum memory of the domain in KiB
+     * @throws VirtException if the domain info could not be read
+     */
+    long getMaxMemory() throws VirtException;
+
+    /**
+     * @return the number of virtual CPUs of the domain
+     * @throws VirtException if the domain info could not be read
+     */
+    int getVcpus() throws VirtException;
+
+    void undefine() throws VirtException;
 }
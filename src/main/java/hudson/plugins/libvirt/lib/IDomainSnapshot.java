@@ -1,4 +1,13 @@
 package hudson.plugins.libvirt.lib;
 
 public interface IDomainSnapshot {
+    /**
+     * @return the name of the snapshot
+     */
+    String getName() throws VirtException;
+
+    /**
+     * @return whether the snapshot holds a running guest, reverting to it resumes the guest right away
+     */
+    boolean isRunning() throws VirtException;
 }
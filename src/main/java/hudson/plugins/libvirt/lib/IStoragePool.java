@@ -0,0 +1,19 @@
+package hudson.plugins.libvirt.lib;
+
+/**
+ * A storage pool, e.g. a directory holding disk images.
+ */
+public interface IStoragePool {
+    String getName() throws VirtException;
+
+    /**
+     * Creates a copy-on-write volume on top of a backing volume. Writes go to
+     * the new volume only, the backing volume is not modified.
+     *
+     * @param name the name of the new volume within the pool
+     * @param backingVol the volume to base the new volume on
+     * @return the new volume in qcow2 format
+     * @throws VirtException if the volume could not be created
+     */
+    IStorageVol createOverlay(String name, IStorageVol backingVol) throws VirtException;
+}
@@ -0,0 +1,24 @@
+package hudson.plugins.libvirt.lib;
+
+/**
+ * A storage volume, e.g. a disk image file of a virtual machine.
+ */
+public interface IStorageVol {
+    String getName() throws VirtException;
+
+    String getPath() throws VirtException;
+
+    /**
+     * @return the virtual size of the volume in bytes
+     */
+    long getCapacity() throws VirtException;
+
+    /**
+     * @return the format of the volume, e.g. "qcow2" or "raw"
+     */
+    String getFormat() throws VirtException;
+
+    IStoragePool getPool() throws VirtException;
+
+    void delete() throws VirtException;
+}
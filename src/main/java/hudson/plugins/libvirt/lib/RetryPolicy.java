@@ -0,0 +1,129 @@
+package hudson.plugins.libvirt.lib;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Retries operations on a hypervisor which failed for a transient reason.
+ *
+ * Errors are classified by their libvirt error code. Only errors which may
+ * go away by themselves, such as timeouts, RPC failures or a domain which is
+ * busy with another job, are retried, with exponentially growing and
+ * randomized delays. Everything else, e.g. a domain that does not exist, an
+ * operation that is invalid in the current state or an error without a code,
+ * fails right away.
+ */
+public final class RetryPolicy {
+
+    private static final Logger LOGGER = Logger.getLogger(RetryPolicy.class.getName());
+
+    /**
+     * Error codes of failures which may succeed when tried again.
+     */
+    private static final Set<String> TRANSIENT_ERRORS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "VIR_ERR_RPC",
+            "VIR_ERR_NO_CONNECT",
+            "VIR_ERR_OPERATION_TIMEOUT"
+    )));
+
+    /**
+     * Older hypervisors report a domain busy with another job as an internal
+     * error, which otherwise means a bug and is not worth retrying.
+     */
+    private static final String STATE_CHANGE_LOCK = "cannot acquire state change lock";
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    public static final long DEFAULT_INITIAL_DELAY_MS = 100;
+
+    private static final long MAX_DELAY_MS = 5000;
+
+    /**
+     * One attempt of the operation.
+     *
+     * @param <T> the result type
+     */
+    public interface Attempt<T> {
+        T call() throws VirtException;
+    }
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+
+    /**
+     * @param maxAttempts how often to try at most, including the first attempt
+     * @param initialDelayMillis the delay before the first retry, doubled for every further retry
+     */
+    public RetryPolicy(int maxAttempts, long initialDelayMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialDelayMillis = Math.max(0, initialDelayMillis);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialDelayMillis() {
+        return initialDelayMillis;
+    }
+
+    /**
+     * @param e the error
+     * @return whether the failed operation may succeed when tried again
+     */
+    public static boolean isTransient(VirtException e) {
+        String code = e.getErrorCode();
+        if (code == null) {
+            // not reported by the hypervisor, nothing tells that it would go away
+            return false;
+        }
+        if ("VIR_ERR_INTERNAL_ERROR".equals(code)) {
+            String message = e.getMessage();
+            return message != null && message.contains(STATE_CHANGE_LOCK);
+        }
+        return TRANSIENT_ERRORS.contains(code);
+    }
+
+    /**
+     * Runs the operation, retrying it while it fails for a transient reason.
+     *
+     * @param description what the operation does, for logging
+     * @param attempt the operation
+     * @param <T> the result type
+     * @return the result of the first successful attempt
+     * @throws VirtException the error of the last attempt, or the first permanent error
+     */
+    public <T> T execute(String description, Attempt<T> attempt) throws VirtException {
+        for (int i = 1;; i++) {
+            try {
+                return attempt.call();
+            } catch (VirtException e) {
+                if (i >= maxAttempts || !isTransient(e)) {
+                    throw e;
+                }
+                long delay = getDelayMillis(i);
+                LOGGER.log(Level.FINE, "Attempt {0} to {1} failed ({2}), retrying in {3}ms",
+                           new Object[]{i, description, e.getErrorCode(), delay});
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e2) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff with equal jitter: half of the delay is fixed, the other half random.
+     */
+    private long getDelayMillis(int retry) {
+        long delay = Math.min(MAX_DELAY_MS, initialDelayMillis << Math.min(retry - 1, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+}
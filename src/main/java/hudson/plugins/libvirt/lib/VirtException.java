@@ -2,18 +2,39 @@ package hudson.plugins.libvirt.lib;
 
 public class VirtException extends Exception {
 
+    private final String errorCode;
+
     public VirtException() {
+        this.errorCode = null;
     }
 
     public VirtException(String s) {
         super(s);
+        this.errorCode = null;
     }
 
     public VirtException(String s, Throwable throwable) {
         super(s, throwable);
+        this.errorCode = null;
     }
 
     public VirtException(Throwable throwable) {
+        this(throwable, null);
+    }
+
+    /**
+     * @param throwable the error reported by the hypervisor
+     * @param errorCode the name of the error code reported by the hypervisor, e.g. "VIR_ERR_NO_DOMAIN"
+     */
+    public VirtException(Throwable throwable, String errorCode) {
         super(throwable);
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * @return the name of the error code reported by the hypervisor, or null if unknown
+     */
+    public String getErrorCode() {
+        return errorCode;
     }
 }
@@ -1,19 +1,35 @@
 package hudson.plugins.libvirt.lib.libvirt;
 
+import hudson.plugins.libvirt.lib.DomainLifecycleListener;
+import hudson.plugins.libvirt.lib.DomainState;
+import hudson.plugins.libvirt.lib.DomainSummary;
 import hudson.plugins.libvirt.lib.IConnect;
 import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.IStorageVol;
 import hudson.plugins.libvirt.lib.VirtException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.libvirt.Connect;
 import org.libvirt.Connect.OpenFlags;
 import org.libvirt.ConnectAuth;
+import org.libvirt.Domain;
 import org.libvirt.LibvirtException;
+import org.libvirt.event.DomainEvent;
+import org.libvirt.event.LifecycleListener;
 
 /**
  * @author Nigel Magnay
  * @version 04/02/2014
  */
 public class LibVirtConnectImpl implements IConnect {
+    private static final Logger LOGGER = Logger.getLogger(LibVirtConnectImpl.class.getName());
+
     private final Connect connect;
+    private final Map<DomainLifecycleListener, LifecycleListener> lifecycleListeners = new ConcurrentHashMap<>();
 
     public LibVirtConnectImpl(Connect connect) {
         this.connect = connect;
@@ -27,7 +43,7 @@ public class LibVirtConnectImpl implements IConnect {
         try {
             this.connect = new Connect(hypervisorUri, auth, flags);
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
@@ -36,7 +52,7 @@ public class LibVirtConnectImpl implements IConnect {
         try {
             return connect.getVersion();
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
@@ -45,7 +61,7 @@ public class LibVirtConnectImpl implements IConnect {
         try {
             return connect.listDomains();
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
@@ -54,16 +70,59 @@ public class LibVirtConnectImpl implements IConnect {
         try {
             return connect.listDefinedDomains();
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
+    /**
+     * Besides listing the active and inactive domains, each active domain is
+     * looked up and asked for its state and each inactive one is looked up.
+     * Inactive domains are known to be shut off, so they are not asked for
+     * their state.
+     */
+    @Override
+    public List<DomainSummary> listDomainSummaries() throws VirtException {
+        int[] active;
+        String[] inactive;
+        try {
+            active = connect.listDomains();
+            inactive = connect.listDefinedDomains();
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+
+        List<DomainSummary> domains = new ArrayList<>();
+        for (int id : active) {
+            try {
+                Domain domain = connect.domainLookupByID(id);
+                domains.add(new DomainSummary(new LibVirtDomainImpl(domain), domain.getName(),
+                        domain.getUUIDString(), id, LibVirtDomainImpl.toState(domain.getInfo().state)));
+            } catch (LibvirtException e) {
+                // the domain may have vanished in the meantime
+                LOGGER.log(Level.FINE, "Skipping domain with id " + id, e);
+            }
+        }
+        for (String name : inactive) {
+            if (name == null || name.isEmpty()) {
+                continue;
+            }
+            try {
+                Domain domain = connect.domainLookupByName(name);
+                domains.add(new DomainSummary(new LibVirtDomainImpl(domain), name,
+                        domain.getUUIDString(), -1, DomainState.SHUTOFF));
+            } catch (LibvirtException e) {
+                LOGGER.log(Level.FINE, "Skipping domain with name " + name, e);
+            }
+        }
+        return domains;
+    }
+
     @Override
     public IDomain domainLookupByName(String c) throws VirtException {
         try {
             return new LibVirtDomainImpl(connect.domainLookupByName(c));
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
@@ -72,7 +131,61 @@ public class LibVirtConnectImpl implements IConnect {
         try {
             return new LibVirtDomainImpl(connect.domainLookupByID(c));
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    @Override
+    public IDomain domainLookupByUUIDString(String uuid) throws VirtException {
+        try {
+            return new LibVirtDomainImpl(connect.domainLookupByUUIDString(uuid));
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    @Override
+    public IStorageVol storageVolLookupByPath(String path) throws VirtException {
+        try {
+            return new LibVirtStorageVolImpl(connect.storageVolLookupByPath(path));
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    @Override
+    public IDomain domainDefineXML(String xml) throws VirtException {
+        try {
+            return new LibVirtDomainImpl(connect.domainDefineXML(xml));
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    @Override
+    public long getNodeMemory() throws VirtException {
+        try {
+            return connect.nodeInfo().memory;
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    @Override
+    public int getNodeCpus() throws VirtException {
+        try {
+            return connect.nodeInfo().cpus;
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    @Override
+    public long getFreeMemory() throws VirtException {
+        try {
+            return connect.getFreeMemory();
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
@@ -81,7 +194,7 @@ public class LibVirtConnectImpl implements IConnect {
         try {
             connect.close();
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
@@ -90,7 +203,48 @@ public class LibVirtConnectImpl implements IConnect {
         try {
             return connect.isConnected();
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    @Override
+    public void addLifecycleListener(final DomainLifecycleListener listener) throws VirtException {
+        LifecycleListener callback = new LifecycleListener() {
+            @Override
+            public int onLifecycleChange(Domain domain, DomainEvent info) {
+                try {
+                    listener.onLifecycleEvent(domain.getName(), toEvent(info));
+                } catch (LibvirtException e) {
+                    LOGGER.log(Level.FINE, "Cannot determine domain of lifecycle event", e);
+                }
+                return 0;
+            }
+        };
+        try {
+            connect.addLifecycleListener(callback);
+            lifecycleListeners.put(listener, callback);
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    @Override
+    public void removeLifecycleListener(DomainLifecycleListener listener) throws VirtException {
+        LifecycleListener callback = lifecycleListeners.remove(listener);
+        if (callback != null) {
+            try {
+                connect.removeLifecycleListener(callback);
+            } catch (LibvirtException e) {
+                throw LibVirtExceptions.wrap(e);
+            }
+        }
+    }
+
+    private static DomainLifecycleListener.Event toEvent(DomainEvent info) {
+        try {
+            return DomainLifecycleListener.Event.valueOf(info.getType().name());
+        } catch (IllegalArgumentException e) {
+            return DomainLifecycleListener.Event.UNKNOWN;
         }
     }
 }
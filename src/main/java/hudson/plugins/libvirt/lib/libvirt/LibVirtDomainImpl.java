@@ -1,5 +1,6 @@
 package hudson.plugins.libvirt.lib.libvirt;
 
+import hudson.plugins.libvirt.lib.DomainState;
 import hudson.plugins.libvirt.lib.IDomain;
 import hudson.plugins.libvirt.lib.IDomainSnapshot;
 import hudson.plugins.libvirt.lib.VirtException;
@@ -22,7 +23,39 @@ public class LibVirtDomainImpl implements IDomain {
         try {
             return domain.getName();
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public String getUUIDString() throws VirtException {
+        try {
+            return domain.getUUIDString();
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public int getID() throws VirtException {
+        try {
+            return domain.getID();
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public DomainState getState() throws VirtException {
+        try {
+            return toState(domain.getInfo().state);
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    static DomainState toState(DomainInfo.DomainState state) {
+        try {
+            return DomainState.valueOf(state.name().substring("VIR_DOMAIN_".length()));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return DomainState.NOSTATE;
         }
     }
 
@@ -30,7 +63,7 @@ public class LibVirtDomainImpl implements IDomain {
         try {
             return domain.snapshotListNames();
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
@@ -38,7 +71,7 @@ public class LibVirtDomainImpl implements IDomain {
         try {
             return domain.snapshotNum();
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
@@ -46,7 +79,15 @@ public class LibVirtDomainImpl implements IDomain {
         try {
             return new LibVirtDomainSnapshotImpl(domain.snapshotLookupByName(snapshotName));
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public IDomainSnapshot snapshotCurrent() throws VirtException {
+        try {
+            return new LibVirtDomainSnapshotImpl(domain.snapshotCurrent());
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
@@ -55,7 +96,7 @@ public class LibVirtDomainImpl implements IDomain {
             DomainSnapshot snapshot = ((LibVirtDomainSnapshotImpl) ds).getSnapshot();
             domain.revertToSnapshot(snapshot);
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
@@ -63,31 +104,23 @@ public class LibVirtDomainImpl implements IDomain {
         try {
             domain.shutdown();
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
     public boolean isRunningOrBlocked() throws VirtException {
-        try {
-            return domain.getInfo().state.equals(DomainInfo.DomainState.VIR_DOMAIN_RUNNING) || domain.getInfo().state.equals(DomainInfo.DomainState.VIR_DOMAIN_BLOCKED);
-        } catch (LibvirtException e) {
-            throw new VirtException(e);
-        }
+        return getState().isRunningOrBlocked();
     }
 
     public boolean isNotBlockedAndNotRunning() throws VirtException {
-        try {
-            return domain.getInfo().state != DomainInfo.DomainState.VIR_DOMAIN_BLOCKED && domain.getInfo().state != DomainInfo.DomainState.VIR_DOMAIN_RUNNING;
-        } catch (LibvirtException e) {
-            throw new VirtException(e);
-        }
+        return !getState().isRunningOrBlocked();
     }
 
     public void create() throws VirtException {
         try {
             domain.create();
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
@@ -95,7 +128,7 @@ public class LibVirtDomainImpl implements IDomain {
         try {
             domain.destroy();
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
         }
     }
 
@@ -103,7 +136,63 @@ public class LibVirtDomainImpl implements IDomain {
         try {
             domain.suspend();
         } catch (LibvirtException e) {
-            throw new VirtException(e);
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public void resume() throws VirtException {
+        try {
+            domain.resume();
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public void managedSave() throws VirtException {
+        try {
+            domain.managedSave();
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public boolean hasManagedSaveImage() throws VirtException {
+        try {
+            return domain.hasManagedSaveImage() == 1;
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public String getXMLDesc() throws VirtException {
+        try {
+            return domain.getXMLDesc(0);
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public long getMaxMemory() throws VirtException {
+        try {
+            return domain.getInfo().maxMem;
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public int getVcpus() throws VirtException {
+        try {
+            return domain.getInfo().nrVirtCpu;
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public void undefine() throws VirtException {
+        try {
+            domain.undefine();
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
         }
     }
 }
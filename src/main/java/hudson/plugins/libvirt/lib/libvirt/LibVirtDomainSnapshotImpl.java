@@ -1,10 +1,25 @@
 package hudson.plugins.libvirt.lib.libvirt;
 
 import hudson.plugins.libvirt.lib.IDomainSnapshot;
+import hudson.plugins.libvirt.lib.VirtException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.libvirt.DomainSnapshot;
+import org.libvirt.LibvirtException;
 
 public class LibVirtDomainSnapshotImpl implements IDomainSnapshot {
 
+    /**
+     * The first state element of a snapshot description is the state of the
+     * guest at the time of the snapshot, the domain definition follows it.
+     */
+    private static final Pattern STATE = Pattern.compile("<state>\\s*([a-z-]+)\\s*</state>");
+
+    /**
+     * The first name element is the name of the snapshot, the one of the domain follows it.
+     */
+    private static final Pattern NAME = Pattern.compile("<name>([^<]*)</name>");
+
     private final DomainSnapshot domainSnapshot;
 
     public LibVirtDomainSnapshotImpl(DomainSnapshot domainSnapshot) {
@@ -14,4 +29,29 @@ public class LibVirtDomainSnapshotImpl implements IDomainSnapshot {
     public DomainSnapshot getSnapshot() {
         return domainSnapshot;
     }
+
+    public String getName() throws VirtException {
+        try {
+            Matcher matcher = NAME.matcher(domainSnapshot.getXMLDesc());
+            if (!matcher.find()) {
+                throw new VirtException("Snapshot description without a name");
+            }
+            return matcher.group(1).replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public boolean isRunning() throws VirtException {
+        try {
+            Matcher matcher = STATE.matcher(domainSnapshot.getXMLDesc());
+            if (!matcher.find()) {
+                return false;
+            }
+            String state = matcher.group(1);
+            return "running".equals(state) || "blocked".equals(state);
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
 }
@@ -0,0 +1,42 @@
+package hudson.plugins.libvirt.lib.libvirt;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.libvirt.Library;
+import org.libvirt.LibvirtException;
+
+/**
+ * Runs the libvirt default event loop on a daemon thread. Domain events are
+ * only delivered to connections opened after the loop has been registered.
+ */
+public final class LibVirtEventLoop {
+    private static final Logger LOGGER = Logger.getLogger(LibVirtEventLoop.class.getName());
+
+    private static Thread thread;
+
+    private LibVirtEventLoop() {
+    }
+
+    /**
+     * Registers and starts the event loop unless it is already running.
+     *
+     * @throws LibvirtException if the event loop could not be registered
+     */
+    public static synchronized void ensureRunning() throws LibvirtException {
+        if (thread != null && thread.isAlive()) {
+            return;
+        }
+        Library.initEventLoop();
+        thread = new Thread(() -> {
+            try {
+                Library.runEventLoop();
+            } catch (LibvirtException e) {
+                LOGGER.log(Level.WARNING, "libvirt event loop terminated", e);
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.FINE, "libvirt event loop interrupted", e);
+            }
+        }, "libvirt event loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,20 @@
+package hudson.plugins.libvirt.lib.libvirt;
+
+import hudson.plugins.libvirt.lib.VirtException;
+import org.libvirt.Error;
+import org.libvirt.LibvirtException;
+
+/**
+ * Converts the exceptions of the libvirt binding, keeping the libvirt error code.
+ */
+public final class LibVirtExceptions {
+
+    private LibVirtExceptions() {
+    }
+
+    public static VirtException wrap(LibvirtException e) {
+        Error error = e.getError();
+        String code = error != null && error.getCode() != null ? error.getCode().name() : null;
+        return new VirtException(e, code);
+    }
+}
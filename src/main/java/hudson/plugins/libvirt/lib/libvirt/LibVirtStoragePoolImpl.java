@@ -0,0 +1,45 @@
+package hudson.plugins.libvirt.lib.libvirt;
+
+import hudson.plugins.libvirt.lib.IStoragePool;
+import hudson.plugins.libvirt.lib.IStorageVol;
+import hudson.plugins.libvirt.lib.VirtException;
+import org.libvirt.LibvirtException;
+import org.libvirt.StoragePool;
+
+public class LibVirtStoragePoolImpl implements IStoragePool {
+
+    private final StoragePool storagePool;
+
+    public LibVirtStoragePoolImpl(StoragePool storagePool) {
+        this.storagePool = storagePool;
+    }
+
+    public String getName() throws VirtException {
+        try {
+            return storagePool.getName();
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public IStorageVol createOverlay(String name, IStorageVol backingVol) throws VirtException {
+        String xml = "<volume>"
+                + "<name>" + escape(name) + "</name>"
+                + "<capacity unit='bytes'>" + backingVol.getCapacity() + "</capacity>"
+                + "<target><format type='qcow2'/></target>"
+                + "<backingStore>"
+                + "<path>" + escape(backingVol.getPath()) + "</path>"
+                + "<format type='" + escape(backingVol.getFormat()) + "'/>"
+                + "</backingStore>"
+                + "</volume>";
+        try {
+            return new LibVirtStorageVolImpl(storagePool.storageVolCreateXML(xml, 0));
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("'", "&apos;");
+    }
+}
@@ -0,0 +1,72 @@
+package hudson.plugins.libvirt.lib.libvirt;
+
+import hudson.plugins.libvirt.lib.IStoragePool;
+import hudson.plugins.libvirt.lib.IStorageVol;
+import hudson.plugins.libvirt.lib.VirtException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.libvirt.LibvirtException;
+import org.libvirt.StorageVol;
+
+public class LibVirtStorageVolImpl implements IStorageVol {
+
+    /**
+     * The format of the volume itself, as opposed to the format of its backing store.
+     */
+    private static final Pattern FORMAT = Pattern.compile("<target>.*?<format type=['\"]([^'\"]+)['\"]", Pattern.DOTALL);
+
+    private final StorageVol storageVol;
+
+    public LibVirtStorageVolImpl(StorageVol storageVol) {
+        this.storageVol = storageVol;
+    }
+
+    public String getName() throws VirtException {
+        try {
+            return storageVol.getName();
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public String getPath() throws VirtException {
+        try {
+            return storageVol.getPath();
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public long getCapacity() throws VirtException {
+        try {
+            return storageVol.getInfo().capacity;
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public String getFormat() throws VirtException {
+        try {
+            Matcher matcher = FORMAT.matcher(storageVol.getXMLDesc(0));
+            return matcher.find() ? matcher.group(1) : "raw";
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public IStoragePool getPool() throws VirtException {
+        try {
+            return new LibVirtStoragePoolImpl(storageVol.storagePoolLookupByVolume());
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+
+    public void delete() throws VirtException {
+        try {
+            storageVol.delete(0);
+        } catch (LibvirtException e) {
+            throw LibVirtExceptions.wrap(e);
+        }
+    }
+}